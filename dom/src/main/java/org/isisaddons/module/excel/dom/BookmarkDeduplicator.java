@@ -0,0 +1,89 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+import java.util.Map;
+import com.google.common.collect.Maps;
+import org.apache.isis.applib.services.bookmark.Bookmark;
+import org.apache.isis.applib.services.bookmark.BookmarkService;
+
+/**
+ * Looks up each distinct bookmark referenced by an import only once, however many rows reference it.
+ *
+ * <p>
+ *     Bookmarks are first {@link #add(Bookmark, ColumnPlan.Column, int) collected} (for a chunk of rows), and then
+ *     {@link #resolvePending() looked up}, one at a time; {@link BookmarkService} has no bulk lookup, so this
+ *     deduplicates the lookups rather than batching them into fewer queries.
+ * </p>
+ */
+class BookmarkDeduplicator {
+
+    /**
+     * Where a pending bookmark was (first) referenced, for reporting any failure to look it up.
+     */
+    private static class Reference {
+        private final ColumnPlan.Column column;
+        private final int rowNum;
+
+        private Reference(final ColumnPlan.Column column, final int rowNum) {
+            this.column = column;
+            this.rowNum = rowNum;
+        }
+    }
+
+    private final BookmarkService bookmarkService;
+
+    private final Map<Bookmark, Object> resolved = Maps.newHashMap();
+    private final Map<Bookmark, Reference> pending = Maps.newLinkedHashMap();
+
+    BookmarkDeduplicator(final BookmarkService bookmarkService) {
+        this.bookmarkService = bookmarkService;
+    }
+
+    /**
+     * @param column - the (reference) column holding the bookmark
+     * @param rowNum - the row holding the bookmark
+     */
+    void add(final Bookmark bookmark, final ColumnPlan.Column column, final int rowNum) {
+        if (!resolved.containsKey(bookmark) && !pending.containsKey(bookmark)) {
+            pending.put(bookmark, new Reference(column, rowNum));
+        }
+    }
+
+    void resolvePending() {
+        for (final Map.Entry<Bookmark, Reference> entry : pending.entrySet()) {
+            final Bookmark bookmark = entry.getKey();
+            final Reference reference = entry.getValue();
+            try {
+                resolved.put(bookmark, bookmarkService.lookup(bookmark, reference.column.getType()));
+            } catch (final RuntimeException e) {
+                throw new ExcelService.Exception(String.format(
+                        "Error looking up %s for column '%s' of Excel row nr. %d. Message: %s",
+                        bookmark, reference.column.getName(), reference.rowNum, e.getMessage()), e);
+            }
+        }
+        pending.clear();
+    }
+
+    /**
+     * The referenced object, or <tt>null</tt> if the bookmark could not be resolved.
+     */
+    Object resolve(final Bookmark bookmark) {
+        return resolved.get(bookmark);
+    }
+
+}
@@ -0,0 +1,366 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Date;
+import org.apache.poi.ss.usermodel.Cell;
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+import org.joda.time.LocalDateTime;
+
+/**
+ * Writes and reads the cells of a column of a particular value type.
+ *
+ * <p>
+ *     Resolved once per column (see {@link ColumnPlan.Column}) from the property's type, rather than testing each
+ *     value against every supported type in turn.
+ * </p>
+ */
+abstract class CellCodec {
+
+    /**
+     * The codec for values of the specified type, or <tt>null</tt> if the type is not supported.
+     */
+    static CellCodec forType(final Class<?> type) {
+        if (type == String.class) {
+            return STRING;
+        }
+        if (type == boolean.class || type == Boolean.class) {
+            return BOOLEAN;
+        }
+        if (Enum.class.isAssignableFrom(type)) {
+            return new EnumCodec(type);
+        }
+
+        // date
+        if (type == Date.class) {
+            return DATE;
+        }
+        if (type == java.sql.Date.class) {
+            return SQL_DATE;
+        }
+        if (type == java.sql.Timestamp.class) {
+            return SQL_TIMESTAMP;
+        }
+        if (type == org.apache.isis.applib.value.Date.class) {
+            return ISIS_DATE;
+        }
+        if (type == org.apache.isis.applib.value.DateTime.class) {
+            return ISIS_DATE_TIME;
+        }
+        if (type == LocalDate.class) {
+            return LOCAL_DATE;
+        }
+        if (type == LocalDateTime.class) {
+            return LOCAL_DATE_TIME;
+        }
+        if (type == DateTime.class) {
+            return DATE_TIME;
+        }
+
+        // number
+        if (type == double.class || type == Double.class) {
+            return DOUBLE;
+        }
+        if (type == float.class || type == Float.class) {
+            return FLOAT;
+        }
+        if (type == BigDecimal.class) {
+            return BIG_DECIMAL;
+        }
+        if (type == BigInteger.class) {
+            return BIG_INTEGER;
+        }
+        if (type == long.class || type == Long.class) {
+            return LONG;
+        }
+        if (type == int.class || type == Integer.class) {
+            return INTEGER;
+        }
+        if (type == short.class || type == Short.class) {
+            return SHORT;
+        }
+        if (type == byte.class || type == Byte.class) {
+            return BYTE;
+        }
+        return null;
+    }
+
+    /**
+     * Writes the value of a single cell, whether to a POI {@link Cell} (see {@link PoiCellWriter}) or directly as
+     * SpreadsheetML (see {@link XlsxStreamWriter}).
+     */
+    interface CellWriter {
+        void writeString(String value);
+
+        void writeNumeric(double value);
+
+        void writeBoolean(boolean value);
+
+        /**
+         * Written as a number, formatted as a date.
+         */
+        void writeDate(Date value);
+    }
+
+    /**
+     * @param value - never <tt>null</tt>
+     */
+    abstract void write(CellWriter writer, Object value);
+
+    /**
+     * @param cell - never blank
+     */
+    abstract Object read(CellValue cell);
+
+    // //////////////////////////////////////
+
+    static final CellCodec STRING = new CellCodec() {
+        @Override
+        void write(final CellWriter writer, final Object value) {
+            writer.writeString((String) value);
+        }
+
+        @Override
+        Object read(final CellValue cell) {
+            return cell.getCellType() == Cell.CELL_TYPE_STRING ? cell.getStringValue() : null;
+        }
+    };
+
+    static final CellCodec BOOLEAN = new CellCodec() {
+        @Override
+        void write(final CellWriter writer, final Object value) {
+            writer.writeBoolean((Boolean) value);
+        }
+
+        @Override
+        Object read(final CellValue cell) {
+            return cell.getCellType() == Cell.CELL_TYPE_BOOLEAN ? Boolean.valueOf(cell.getBooleanValue()) : null;
+        }
+    };
+
+    static final class EnumCodec extends CellCodec {
+        @SuppressWarnings("rawtypes")
+        private final Class enumType;
+
+        EnumCodec(final Class<?> enumType) {
+            this.enumType = enumType;
+        }
+
+        @Override
+        void write(final CellWriter writer, final Object value) {
+            writer.writeString(((Enum<?>) value).name());
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        Object read(final CellValue cell) {
+            return Enum.valueOf(enumType, cell.getStringValue());
+        }
+    }
+
+    // //////////////////////////////////////
+
+    static final CellCodec DATE = new DateCodec() {
+        @Override
+        Date toDate(final Object value) {
+            return (Date) value;
+        }
+
+        @Override
+        Object fromDate(final Date date) {
+            return date;
+        }
+    };
+
+    static final CellCodec SQL_DATE = new DateCodec() {
+        @Override
+        Date toDate(final Object value) {
+            return (Date) value;
+        }
+
+        @Override
+        Object fromDate(final Date date) {
+            return new java.sql.Date(date.getTime());
+        }
+    };
+
+    static final CellCodec SQL_TIMESTAMP = new DateCodec() {
+        @Override
+        Date toDate(final Object value) {
+            return (Date) value;
+        }
+
+        @Override
+        Object fromDate(final Date date) {
+            return new java.sql.Timestamp(date.getTime());
+        }
+    };
+
+    static final CellCodec ISIS_DATE = new DateCodec() {
+        @Override
+        Date toDate(final Object value) {
+            return ((org.apache.isis.applib.value.Date) value).dateValue();
+        }
+
+        @Override
+        Object fromDate(final Date date) {
+            return new org.apache.isis.applib.value.Date(date);
+        }
+    };
+
+    static final CellCodec ISIS_DATE_TIME = new DateCodec() {
+        @Override
+        Date toDate(final Object value) {
+            return ((org.apache.isis.applib.value.DateTime) value).dateValue();
+        }
+
+        @Override
+        Object fromDate(final Date date) {
+            return new org.apache.isis.applib.value.DateTime(date);
+        }
+    };
+
+    static final CellCodec LOCAL_DATE = new DateCodec() {
+        @Override
+        Date toDate(final Object value) {
+            return ((LocalDate) value).toDateTimeAtStartOfDay().toDate();
+        }
+
+        @Override
+        Object fromDate(final Date date) {
+            return new LocalDate(date.getTime());
+        }
+    };
+
+    static final CellCodec LOCAL_DATE_TIME = new DateCodec() {
+        @Override
+        Date toDate(final Object value) {
+            return ((LocalDateTime) value).toDate();
+        }
+
+        @Override
+        Object fromDate(final Date date) {
+            return new LocalDateTime(date.getTime());
+        }
+    };
+
+    static final CellCodec DATE_TIME = new DateCodec() {
+        @Override
+        Date toDate(final Object value) {
+            return ((DateTime) value).toDate();
+        }
+
+        @Override
+        Object fromDate(final Date date) {
+            return new DateTime(date.getTime());
+        }
+    };
+
+    abstract static class DateCodec extends CellCodec {
+
+        @Override
+        final void write(final CellWriter writer, final Object value) {
+            writer.writeDate(toDate(value));
+        }
+
+        @Override
+        final Object read(final CellValue cell) {
+            return fromDate(cell.getDateValue());
+        }
+
+        abstract Date toDate(Object value);
+
+        abstract Object fromDate(Date date);
+    }
+
+    // //////////////////////////////////////
+
+    static final CellCodec DOUBLE = new NumericCodec() {
+        @Override
+        Object fromDouble(final double value) {
+            return Double.valueOf(value);
+        }
+    };
+
+    static final CellCodec FLOAT = new NumericCodec() {
+        @Override
+        Object fromDouble(final double value) {
+            return Float.valueOf((float) value);
+        }
+    };
+
+    static final CellCodec BIG_DECIMAL = new NumericCodec() {
+        @Override
+        Object fromDouble(final double value) {
+            return BigDecimal.valueOf(value);
+        }
+    };
+
+    static final CellCodec BIG_INTEGER = new NumericCodec() {
+        @Override
+        Object fromDouble(final double value) {
+            return BigInteger.valueOf((long) value);
+        }
+    };
+
+    static final CellCodec LONG = new NumericCodec() {
+        @Override
+        Object fromDouble(final double value) {
+            return Long.valueOf((long) value);
+        }
+    };
+
+    static final CellCodec INTEGER = new NumericCodec() {
+        @Override
+        Object fromDouble(final double value) {
+            return Integer.valueOf((int) value);
+        }
+    };
+
+    static final CellCodec SHORT = new NumericCodec() {
+        @Override
+        Object fromDouble(final double value) {
+            return Short.valueOf((short) value);
+        }
+    };
+
+    static final CellCodec BYTE = new NumericCodec() {
+        @Override
+        Object fromDouble(final double value) {
+            return Byte.valueOf((byte) value);
+        }
+    };
+
+    abstract static class NumericCodec extends CellCodec {
+
+        @Override
+        final void write(final CellWriter writer, final Object value) {
+            writer.writeNumeric(((Number) value).doubleValue());
+        }
+
+        @Override
+        final Object read(final CellValue cell) {
+            return cell.getCellType() == Cell.CELL_TYPE_NUMERIC ? fromDouble(cell.getNumericValue()) : null;
+        }
+
+        abstract Object fromDouble(double value);
+    }
+
+}
@@ -16,14 +16,10 @@
  */
 package org.isisaddons.module.excel.dom;
 
-import java.math.BigDecimal;
-import java.math.BigInteger;
-import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Map;
 import org.apache.poi.hssf.usermodel.HSSFCell;
 import org.apache.poi.ss.usermodel.*;
-import org.joda.time.DateTime;
-import org.joda.time.LocalDate;
-import org.joda.time.LocalDateTime;
 import org.apache.isis.applib.services.bookmark.Bookmark;
 import org.apache.isis.applib.services.bookmark.BookmarkService;
 import org.apache.isis.core.metamodel.adapter.ObjectAdapter;
@@ -32,169 +28,172 @@ import org.apache.isis.core.metamodel.spec.feature.OneToOneAssociation;
 
 final class CellMarshaller {
 
-    private final CellStyle dateCellStyle;
+    /**
+     * How the bookmarks of referenced objects are written.
+     */
+    enum BookmarkEncoding {
+        /**
+         * As a comment on each cell holding the referenced object's title.
+         */
+        COMMENTS,
+        /**
+         * In a hidden column (see {@link ColumnPlan#getBookmarkHeaders()}) alongside the visible columns; far more
+         * compact than comments, which each need an anchor and a drawing shape.
+         */
+        COLUMNS
+    }
+
+    /**
+     * Bounds the number of referenced objects whose title and bookmark are remembered during a single export.
+     */
+    private static final int REFERENCES_MAXIMUM_SIZE = 10000;
+
+    private final PoiCellWriter cellWriter;
     private final BookmarkService bookmarkService;
+    private final BookmarkEncoding bookmarkEncoding;
+
+    /**
+     * The title and bookmark of each object referenced so far, by identity; the same object is typically referenced
+     * by many rows.
+     */
+    private final Map<Object, Reference> references = new IdentityHashMap<>();
 
     CellMarshaller(
             final BookmarkService bookmarkService, 
-            final CellStyle dateCellStyle){
+            final CellStyle dateCellStyle,
+            final BookmarkEncoding bookmarkEncoding){
         this.bookmarkService = bookmarkService;
-        this.dateCellStyle = dateCellStyle;
+        this.cellWriter = new PoiCellWriter(dateCellStyle);
+        this.bookmarkEncoding = bookmarkEncoding;
     }
     
     void setCellValue(
             final ObjectAdapter objectAdapter, 
-            final OneToOneAssociation otoa, 
+            final ColumnPlan.Column column,
             final Cell cell) {
-        
+        setCellValue(getExportValue(objectAdapter, column), column, cell);
+    }
+
+    /**
+     * Reads the value of the property to be exported, independently of any workbook: either <tt>null</tt>, the
+     * value itself (for value types), a {@link Reference} (for references) or a title (otherwise).
+     *
+     * <p>
+     *     Reads the domain object, so must be called by the thread holding the Isis session; the result can then be
+     *     {@link #setCellValue(Object, ColumnPlan.Column, org.apache.poi.ss.usermodel.Cell) written} by any thread.
+     * </p>
+     */
+    Object getExportValue(
+            final ObjectAdapter objectAdapter,
+            final ColumnPlan.Column column) {
+
+        final OneToOneAssociation otoa = column.getProperty();
         final ObjectAdapter propertyAdapter = otoa.get(objectAdapter);
-        
+
         // null
         if (propertyAdapter == null) {
-            cell.setCellType(HSSFCell.CELL_TYPE_BLANK);
-            return;
+            return null;
         }
-        
-        final ObjectSpecification propertySpec = otoa.getSpecification();
-        final Object propertyAsObj = propertyAdapter.getObject();
-        final String propertyAsTitle = propertyAdapter.titleString(null);
-        
+
         // value types
-        if(propertySpec.isValue()) {
-            if(setCellValue(cell, propertyAsObj)) {
-                return;
-            }
+        if(column.getCodec() != null) {
+            return propertyAdapter.getObject();
         }
-        
+
         // reference types
-        if(!propertySpec.isParentedOrFreeCollection()) {
-            setCellValueForBookmark(cell, propertyAsObj, propertyAsTitle);
-            return;
+        if(column.isReference()) {
+            return referenceFor(propertyAdapter);
         }
 
         // fallback, best effort
-        setCellValueForString(cell, propertyAsTitle);
-        return;
+        return propertyAdapter.titleString(null);
     }
 
-    private boolean setCellValue(final Cell cell, final Object valueAsObj) {
-        if(valueAsObj == null) {
+    /**
+     * Writes the value of a {@link ColumnPlan.Column#isPrimitiveNumeric() primitive numeric} property.
+     */
+    void setNumericCellValue(final double value, final Cell cell) {
+        cellWriter.on(cell).writeNumeric(value);
+    }
+
+    /**
+     * Writes a value previously obtained from {@link #getExportValue(ObjectAdapter, ColumnPlan.Column)}.
+     */
+    void setCellValue(
+            final Object exportValue,
+            final ColumnPlan.Column column,
+            final Cell cell) {
+
+        // null
+        if (exportValue == null) {
             cell.setCellType(HSSFCell.CELL_TYPE_BLANK);
-            return true;
-        }
-        
-        // string
-        if(valueAsObj instanceof String) {
-            String value = (String) valueAsObj;
-            setCellValueForString(cell, value);
-            return true;
-        } 
-
-        // boolean
-        if(valueAsObj instanceof Boolean) {
-            Boolean value = (Boolean) valueAsObj;
-            cell.setCellValue(value);
-            cell.setCellType(HSSFCell.CELL_TYPE_BOOLEAN);
-            return true;
-        } 
-        
-        // date
-        if(valueAsObj instanceof Date) {
-            Date value = (Date) valueAsObj;
-            setCellValueForDate(cell, value, dateCellStyle);
-            return true;
-        } 
-        if(valueAsObj instanceof org.apache.isis.applib.value.Date) {
-            org.apache.isis.applib.value.Date value = (org.apache.isis.applib.value.Date) valueAsObj;
-            Date dateValue = value.dateValue();
-            setCellValueForDate(cell, dateValue, dateCellStyle);
-            return true;
-        } 
-        if(valueAsObj instanceof org.apache.isis.applib.value.DateTime) {
-            org.apache.isis.applib.value.DateTime value = (org.apache.isis.applib.value.DateTime) valueAsObj;
-            Date dateValue = value.dateValue();
-            setCellValueForDate(cell, dateValue, dateCellStyle);
-            return true;
-        } 
-        if(valueAsObj instanceof LocalDate) {
-            LocalDate value = (LocalDate) valueAsObj;
-            Date date = value.toDateTimeAtStartOfDay().toDate();
-            setCellValueForDate(cell, date, dateCellStyle);
-            return true;
-        } 
-        if(valueAsObj instanceof LocalDateTime) {
-            LocalDateTime value = (LocalDateTime) valueAsObj;
-            Date date = value.toDate();
-            setCellValueForDate(cell, date, dateCellStyle);
-            return true;
-        } 
-        if(valueAsObj instanceof DateTime) {
-            DateTime value = (DateTime) valueAsObj;
-            Date date = value.toDate();
-            setCellValueForDate(cell, date, dateCellStyle);
-            return true;
-        }
-        
-        // number
-        if(valueAsObj instanceof Double) {
-            Double value = (Double) valueAsObj;
-            setCellValueForDouble(cell, (double)value);
-            return true;
+            return;
         }
-        if(valueAsObj instanceof Float) {
-            Float value = (Float) valueAsObj;
-            setCellValueForDouble(cell, (double)value);
-            return true;
-        } 
-        if(valueAsObj instanceof BigDecimal) {
-            BigDecimal value = (BigDecimal) valueAsObj;
-            setCellValueForDouble(cell, value.doubleValue());
-            return true;
-        } 
-        if(valueAsObj instanceof BigInteger) {
-            BigInteger value = (BigInteger) valueAsObj;
-            setCellValueForDouble(cell, value.doubleValue());
-            return true;
-        } 
-        if(valueAsObj instanceof Long) {
-            Long value = (Long) valueAsObj;
-            setCellValueForDouble(cell, (double)value);
-            return true;
-        } 
-        if(valueAsObj instanceof Integer) {
-            Integer value = (Integer) valueAsObj;
-            setCellValueForDouble(cell, (double)value);
-            return true;
-        } 
-        if(valueAsObj instanceof Short) {
-            Short value = (Short) valueAsObj;
-            setCellValueForDouble(cell, (double)value);
-            return true;
-        } 
-        if(valueAsObj instanceof Byte) {
-            Byte value = (Byte) valueAsObj;
-            setCellValueForDouble(cell, (double)value);
-            return true;
+
+        // value types
+        final CellCodec codec = column.getCodec();
+        if(codec != null) {
+            codec.write(cellWriter.on(cell), exportValue);
+            return;
         }
-        if(valueAsObj instanceof Enum) {
-            Enum<?> value = (Enum<?>) valueAsObj;
-            setCellValueForEnum(cell, (Enum<?>)value);
-            return true;
+
+        // reference types
+        if(exportValue instanceof Reference) {
+            setCellValueForBookmark(cell, column, (Reference) exportValue);
+            return;
         }
-        return false;
+
+        // fallback, best effort
+        cellWriter.on(cell).writeString((String) exportValue);
     }
 
-    private static void setCellValueForString(final Cell cell, final String objectAsStr) {
-        cell.setCellValue(objectAsStr);
-        cell.setCellType(HSSFCell.CELL_TYPE_STRING);
+    private Reference referenceFor(final ObjectAdapter propertyAdapter) {
+        final Object propertyAsObj = propertyAdapter.getObject();
+        Reference reference = references.get(propertyAsObj);
+        if(reference == null) {
+            if(references.size() == REFERENCES_MAXIMUM_SIZE) {
+                references.clear();
+            }
+            final Bookmark bookmark = bookmarkService.bookmarkFor(propertyAsObj);
+            reference = new Reference(propertyAdapter.titleString(null), bookmark.toString());
+            references.put(propertyAsObj, reference);
+        }
+        return reference;
     }
 
-    private void setCellValueForBookmark(final Cell cell, final Object propertyAsObject, final String propertyAsTitle) {
-        Bookmark bookmark = bookmarkService.bookmarkFor(propertyAsObject);
-        setCellComment(cell, bookmark.toString());
+    private void setCellValueForBookmark(
+            final Cell cell,
+            final ColumnPlan.Column column,
+            final Reference reference) {
+        if(bookmarkEncoding == BookmarkEncoding.COLUMNS) {
+            final Cell bookmarkCell = cell.getRow().createCell(column.getBookmarkColumnIndex());
+            cellWriter.on(bookmarkCell).writeString(reference.bookmark);
+        } else {
+            setCellComment(cell, reference.bookmark);
+        }
         
-        cell.setCellValue(propertyAsTitle);
-        cell.setCellType(HSSFCell.CELL_TYPE_STRING);
+        cellWriter.on(cell).writeString(reference.title);
+    }
+
+    /**
+     * The title and (string form of the) bookmark of a referenced object.
+     */
+    static final class Reference {
+        private final String title;
+        private final String bookmark;
+
+        Reference(final String title, final String bookmark) {
+            this.title = title;
+            this.bookmark = bookmark;
+        }
+
+        String getTitle() {
+            return title;
+        }
+
+        String getBookmark() {
+            return bookmark;
+        }
     }
 
     private static void setCellComment(final Cell cell, final String commentText) {
@@ -218,26 +217,15 @@ final class CellMarshaller {
         cell.setCellComment(comment);
     }
 
-    private static <E extends Enum<E>> void setCellValueForEnum(final Cell cell, final Enum<E> objectAsStr) {
-        cell.setCellValue(objectAsStr.name());
-        cell.setCellType(HSSFCell.CELL_TYPE_STRING);
-    }
-    
-    private static void setCellValueForDouble(final Cell cell, double value) {
-        cell.setCellValue(value);
-        cell.setCellType(HSSFCell.CELL_TYPE_NUMERIC);
+    String getStringCellValue(final CellValue cell) {
+        return cell.getCellType() == HSSFCell.CELL_TYPE_BLANK ? null : (String) CellCodec.STRING.read(cell);
     }
 
-    private static void setCellValueForDate(final Cell cell, Date date, CellStyle dateCellStyle) {
-        cell.setCellValue(date);
-        cell.setCellStyle(dateCellStyle);
-    }
-
-    String getStringCellValue(Cell cell) {
-        return getCellValue(cell, String.class);
-    }
-
-    Object getCellValue(final Cell cell, final OneToOneAssociation otoa) {
+    /**
+     * For {@link ColumnPlan.Column#isReference() reference} columns, returns the {@link Bookmark} of the referenced
+     * object (to be resolved by a {@link BookmarkDeduplicator}).
+     */
+    Object getCellValue(final CellValue cell, final ColumnPlan.Column column) {
 
         final int cellType = cell.getCellType();
 
@@ -245,171 +233,41 @@ final class CellMarshaller {
             return null;
         }
 
-        final ObjectSpecification propertySpec = otoa.getSpecification();
-        Class<?> requiredType = propertySpec.getCorrespondingClass();
-        
         // value types
-        if(propertySpec.isValue()) {
-            return getCellValue(cell, requiredType);
+        final CellCodec codec = column.getCodec();
+        if(codec != null) {
+            return codec.read(cell);
+        }
+        if(column.isValue()) {
+            return null;
         }
         
         // reference types
+        final ObjectSpecification propertySpec = column.getProperty().getSpecification();
         if(!propertySpec.isParentedOrFreeCollection()) {
-            return getCellComment(cell, requiredType);
+            return getCellComment(cell);
         }
         
         return null;
     }
 
-    @SuppressWarnings("unchecked")
-    private <T> T getCellValue(final Cell cell, final Class<T> requiredType) {
-        final int cellType = cell.getCellType();
-
-        if(requiredType == boolean.class || requiredType == Boolean.class) {
-            if(cellType == HSSFCell.CELL_TYPE_BOOLEAN) {
-                boolean booleanCellValue = cell.getBooleanCellValue();
-                return (T) Boolean.valueOf(booleanCellValue);
-            } else {
-                return null;
-            }
-        }
-        
-        // enum
-        if(Enum.class.isAssignableFrom(requiredType)) {
-            String stringCellValue = cell.getStringCellValue();
-            @SuppressWarnings("rawtypes")
-            Class rawType = requiredType;
-            return (T) Enum.valueOf(rawType, stringCellValue);
-        }
-        
-        // date
-        if(requiredType == java.util.Date.class) {
-            java.util.Date dateCellValue = cell.getDateCellValue();
-            return (T) dateCellValue;
-        }
-
-        if(requiredType == org.apache.isis.applib.value.Date.class) {
-            java.util.Date dateCellValue = cell.getDateCellValue();
-            return (T)new org.apache.isis.applib.value.Date(dateCellValue);
-        } 
-
-        if(requiredType == org.apache.isis.applib.value.DateTime.class) {
-            java.util.Date dateCellValue = cell.getDateCellValue();
-            return (T)new org.apache.isis.applib.value.DateTime(dateCellValue);
-        } 
-        
-        if(requiredType == LocalDate.class) {
-            java.util.Date dateCellValue = cell.getDateCellValue();
-            return (T) new LocalDate(dateCellValue.getTime());
-        } 
-        
-        if(requiredType == LocalDateTime.class) {
-            java.util.Date dateCellValue = cell.getDateCellValue();
-            return (T) new LocalDateTime(dateCellValue.getTime());
-        } 
-
-        if(requiredType == DateTime.class) {
-            java.util.Date dateCellValue = cell.getDateCellValue();
-            return (T) new DateTime(dateCellValue.getTime());
-        } 
-        
-        
-        // number
-        if(requiredType == double.class || requiredType == Double.class) {
-            if(cellType == HSSFCell.CELL_TYPE_NUMERIC) {
-                double doubleValue = cell.getNumericCellValue();
-                return (T) Double.valueOf(doubleValue);
-            } else {
-                return null;
-            }
-        } 
-        
-        if(requiredType == float.class || requiredType == Float.class) {
-            if(cellType == HSSFCell.CELL_TYPE_NUMERIC) {
-                float floatValue = (float)cell.getNumericCellValue();
-                return (T) Float.valueOf(floatValue);
-            } else {
-                return null;
-            }
-        } 
-        
-        if(requiredType == BigDecimal.class) {
-            if(cellType == HSSFCell.CELL_TYPE_NUMERIC) {
-                double doubleValue = cell.getNumericCellValue();
-                return (T) BigDecimal.valueOf(doubleValue);
-            } else {
-                return null;
-            }
-        } 
-        
-        if(requiredType == BigInteger.class) {
-            if(cellType == HSSFCell.CELL_TYPE_NUMERIC) {
-                long longValue = (long)cell.getNumericCellValue();
-                return (T) BigInteger.valueOf(longValue);
-            } else {
-                return null;
-            }
-        } 
-
-        if(requiredType == long.class || requiredType == Long.class) {
-            if(cellType == HSSFCell.CELL_TYPE_NUMERIC) {
-                long longValue = (long) cell.getNumericCellValue();
-                return (T) Long.valueOf(longValue);
-            } else {
-                return null;
-            }
-        } 
-        
-        if(requiredType == int.class || requiredType == Integer.class) {
-            if(cellType == HSSFCell.CELL_TYPE_NUMERIC) {
-                int intValue = (int) cell.getNumericCellValue();
-                return (T) Integer.valueOf(intValue);
-            } else {
-                return null;
-            }
-        } 
-        
-        if(requiredType == short.class || requiredType == Short.class) {
-            if(cellType == HSSFCell.CELL_TYPE_NUMERIC) {
-                short shortValue = (short) cell.getNumericCellValue();
-                return (T) Short.valueOf(shortValue);
-            } else {
-                return null;
-            }
-        } 
-        
-        if(requiredType == byte.class || requiredType == Byte.class) {
-            if(cellType == HSSFCell.CELL_TYPE_NUMERIC) {
-                byte byteValue = (byte) cell.getNumericCellValue();
-                return (T) Byte.valueOf(byteValue);
-            } else {
-                return null;
-            }
-        } 
-
-        if(requiredType == String.class) {
-            if(cellType == HSSFCell.CELL_TYPE_STRING) {
-                return (T) cell.getStringCellValue();
-            } else {
-                return null;
-            }
-        }
-        return null;
+    private static Bookmark getCellComment(final CellValue cell) {
+        return bookmarkFor(cell.getComment());
     }
 
-    private Object getCellComment(final Cell cell, final Class<?> requiredType) {
-        final Comment comment = cell.getCellComment();
-        if(comment == null) {
-            return null;
-        } 
-        final RichTextString commentRts = comment.getString();
-        if(commentRts == null) {
+    /**
+     * For a cell of a hidden bookmark column.
+     */
+    Bookmark getBookmarkCellValue(final CellValue cell) {
+        if(cell.getCellType() != HSSFCell.CELL_TYPE_STRING) {
             return null;
         }
-        final String bookmarkStr = commentRts.getString();
-        final Bookmark bookmark = new Bookmark(bookmarkStr);
-        return bookmarkService.lookup(bookmark, requiredType);
+        return bookmarkFor(cell.getStringValue());
+    }
+
+    private static Bookmark bookmarkFor(final String bookmarkStr) {
+        return bookmarkStr != null ? new Bookmark(bookmarkStr) : null;
     }
     
 
-}
\ No newline at end of file
+}
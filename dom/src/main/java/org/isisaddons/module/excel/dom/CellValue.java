@@ -0,0 +1,182 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+import java.util.Date;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Comment;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.usermodel.RichTextString;
+
+/**
+ * The value of a single cell, independent of whether the spreadsheet was read into an in-memory
+ * {@link org.apache.poi.ss.usermodel.Workbook} or streamed as XML events.
+ *
+ * <p>
+ *     The accessors follow the semantics of the corresponding {@link Cell} methods, so that {@link CellMarshaller}
+ *     converts values in the same way whichever way the spreadsheet was read.
+ * </p>
+ */
+final class CellValue {
+
+    private final int columnIndex;
+    private final int cellType;
+
+    private String stringValue;
+    private int sharedStringIndex = -1;
+    private double numericValue;
+    private boolean numeric;
+    private boolean booleanValue;
+    private boolean date1904;
+    private String comment;
+
+    /**
+     * Only set if read from an in-memory workbook, in which case dates and comments are obtained lazily from the cell.
+     */
+    private Cell cell;
+
+    private CellValue(final int columnIndex, final int cellType) {
+        this.columnIndex = columnIndex;
+        this.cellType = cellType;
+    }
+
+    static CellValue of(final Cell cell) {
+        final int cellType = cell.getCellType();
+        final CellValue cellValue = new CellValue(cell.getColumnIndex(), cellType);
+        cellValue.cell = cell;
+        final int valueType = cellType == Cell.CELL_TYPE_FORMULA ? cell.getCachedFormulaResultType() : cellType;
+        switch (valueType) {
+            case Cell.CELL_TYPE_STRING:
+                cellValue.stringValue = cell.getStringCellValue();
+                break;
+            case Cell.CELL_TYPE_NUMERIC:
+                cellValue.numericValue = cell.getNumericCellValue();
+                cellValue.numeric = true;
+                break;
+            case Cell.CELL_TYPE_BOOLEAN:
+                cellValue.booleanValue = cell.getBooleanCellValue();
+                break;
+            default:
+                break;
+        }
+        return cellValue;
+    }
+
+    static CellValue blank(final int columnIndex) {
+        return new CellValue(columnIndex, Cell.CELL_TYPE_BLANK);
+    }
+
+    static CellValue error(final int columnIndex) {
+        return new CellValue(columnIndex, Cell.CELL_TYPE_ERROR);
+    }
+
+    static CellValue ofString(final int columnIndex, final int cellType, final String value) {
+        final CellValue cellValue = new CellValue(columnIndex, cellType);
+        cellValue.stringValue = value;
+        return cellValue;
+    }
+
+    /**
+     * A string held in the spreadsheet's shared strings table, at the specified index.
+     */
+    static CellValue ofSharedString(final int columnIndex, final int sharedStringIndex, final String value) {
+        final CellValue cellValue = ofString(columnIndex, Cell.CELL_TYPE_STRING, value);
+        cellValue.sharedStringIndex = sharedStringIndex;
+        return cellValue;
+    }
+
+    static CellValue ofNumeric(final int columnIndex, final int cellType, final double value, final boolean date1904) {
+        final CellValue cellValue = new CellValue(columnIndex, cellType);
+        cellValue.numericValue = value;
+        cellValue.numeric = true;
+        cellValue.date1904 = date1904;
+        return cellValue;
+    }
+
+    static CellValue ofBoolean(final int columnIndex, final boolean value) {
+        final CellValue cellValue = new CellValue(columnIndex, Cell.CELL_TYPE_BOOLEAN);
+        cellValue.booleanValue = value;
+        return cellValue;
+    }
+
+    // //////////////////////////////////////
+
+    int getColumnIndex() {
+        return columnIndex;
+    }
+
+    /**
+     * One of the {@link Cell}<tt>.CELL_TYPE_xxx</tt> constants.
+     */
+    int getCellType() {
+        return cellType;
+    }
+
+    String getStringValue() {
+        if (stringValue == null) {
+            throw new IllegalStateException(String.format("Cannot get a text value from %s", this));
+        }
+        return stringValue;
+    }
+
+    /**
+     * The index of the string in the spreadsheet's shared strings table, or <tt>-1</tt> if the cell does not hold a
+     * shared string (or was read from an in-memory workbook).
+     */
+    int getSharedStringIndex() {
+        return sharedStringIndex;
+    }
+
+    double getNumericValue() {
+        if (!numeric) {
+            throw new IllegalStateException(String.format("Cannot get a numeric value from %s", this));
+        }
+        return numericValue;
+    }
+
+    boolean getBooleanValue() {
+        return booleanValue;
+    }
+
+    Date getDateValue() {
+        if (cell != null) {
+            return cell.getDateCellValue();
+        }
+        return DateUtil.getJavaDate(getNumericValue(), date1904);
+    }
+
+    String getComment() {
+        if (cell != null) {
+            final Comment cellComment = cell.getCellComment();
+            if (cellComment == null) {
+                return null;
+            }
+            final RichTextString commentRts = cellComment.getString();
+            return commentRts != null ? commentRts.getString() : null;
+        }
+        return comment;
+    }
+
+    void setComment(final String comment) {
+        this.comment = comment;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("cell (column %d, type %d)", columnIndex, cellType);
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.apache.isis.applib.annotation.Where;
+import org.apache.isis.applib.filter.Filter;
+import org.apache.isis.applib.filter.Filters;
+import org.apache.isis.applib.util.ObjectContracts;
+import org.apache.isis.core.metamodel.facets.ImperativeFacet;
+import org.apache.isis.core.metamodel.facets.object.viewmodel.ViewModelFacet;
+import org.apache.isis.core.metamodel.facets.propcoll.accessor.PropertyOrCollectionAccessorFacet;
+import org.apache.isis.core.metamodel.facets.properties.update.modify.PropertySetterFacet;
+import org.apache.isis.core.metamodel.spec.ObjectSpecification;
+import org.apache.isis.core.metamodel.spec.SpecificationLoader;
+import org.apache.isis.core.metamodel.spec.feature.Contributed;
+import org.apache.isis.core.metamodel.spec.feature.ObjectAssociation;
+import org.apache.isis.core.metamodel.spec.feature.OneToOneAssociation;
+
+/**
+ * The metamodel information needed to export or import a given class, computed once per class.
+ *
+ * <p>
+ *     Obtained from {@link ColumnPlan.Cache}, which recomputes the plan if the class' {@link ObjectSpecification}
+ *     has been replaced (ie the metamodel has been reloaded).
+ * </p>
+ */
+final class ColumnPlan {
+
+    @SuppressWarnings({ "unchecked", "deprecation" })
+    private static final Filter<ObjectAssociation> VISIBLE_PROPERTIES = Filters.and(
+            ObjectAssociation.Filters.PROPERTIES,
+            ObjectAssociation.Filters.staticallyVisible(Where.STANDALONE_TABLES));
+
+    /**
+     * Appended to the name of a reference property to form the header of the (hidden) column holding its bookmarks.
+     */
+    static final String BOOKMARK_HEADER_SUFFIX = " [bookmark]";
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType NUMERIC_GETTER_TYPE = MethodType.methodType(double.class, Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+    static class Column {
+        private final String name;
+        private final OneToOneAssociation property;
+        private final Class<?> type;
+        private final boolean value;
+        private final boolean reference;
+        private final CellCodec codec;
+        private final int bookmarkColumnIndex;
+        private final MethodHandle getter;
+        private final MethodHandle numericGetter;
+        private final MethodHandle setter;
+        private final boolean readDirectly;
+
+        Column(final OneToOneAssociation property, final int bookmarkColumnIndex) {
+            this.name = property.getName();
+            this.property = property;
+            final ObjectSpecification propertySpec = property.getSpecification();
+            this.type = propertySpec.getCorrespondingClass();
+            this.value = propertySpec.isValue();
+            this.codec = value ? CellCodec.forType(type) : null;
+            this.reference = codec == null && !propertySpec.isParentedOrFreeCollection();
+            this.bookmarkColumnIndex = reference ? bookmarkColumnIndex : -1;
+            final MethodHandle accessor = accessorFor(property);
+            this.getter = accessor != null ? accessor.asType(GETTER_TYPE) : null;
+            this.setter = setterFor(property);
+            // derived properties (without a setter) may compute their value using the session
+            this.readDirectly = codec != null && getter != null && setter != null;
+            // widened to return a double, so that the values of primitive numbers are never boxed
+            this.numericGetter = readDirectly && isPrimitiveNumeric(accessor.type().returnType())
+                    ? accessor.asType(NUMERIC_GETTER_TYPE)
+                    : null;
+        }
+
+        private static boolean isPrimitiveNumeric(final Class<?> type) {
+            return type.isPrimitive() && type != boolean.class && type != char.class && type != void.class;
+        }
+
+        /**
+         * The getter, as declared (rather than adapted to any particular type).
+         */
+        private static MethodHandle accessorFor(final OneToOneAssociation property) {
+            final PropertyOrCollectionAccessorFacet accessorFacet = property.getFacet(PropertyOrCollectionAccessorFacet.class);
+            if (!(accessorFacet instanceof ImperativeFacet)) {
+                // eg contributed properties
+                return null;
+            }
+            final List<Method> methods = ((ImperativeFacet) accessorFacet).getMethods();
+            if (methods.size() != 1) {
+                return null;
+            }
+            try {
+                return MethodHandles.publicLookup().unreflect(methods.get(0));
+            } catch (final IllegalAccessException ex) {
+                return null;
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public OneToOneAssociation getProperty() {
+            return property;
+        }
+
+        public Class<?> getType() {
+            return type;
+        }
+
+        /**
+         * Whether the property is a value type (as opposed to a reference to another domain object).
+         */
+        public boolean isValue() {
+            return value;
+        }
+
+        /**
+         * The codec for the property's value type, or <tt>null</tt> if not a (supported) value type.
+         */
+        public CellCodec getCodec() {
+            return codec;
+        }
+
+        /**
+         * Whether the property is written as the title of the referenced object, along with its bookmark.
+         */
+        public boolean isReference() {
+            return reference;
+        }
+
+        /**
+         * For exported references, the index of the hidden column that holds the bookmarks (if so encoded).
+         */
+        public int getBookmarkColumnIndex() {
+            return bookmarkColumnIndex;
+        }
+
+        private static MethodHandle setterFor(final OneToOneAssociation property) {
+            final PropertySetterFacet setterFacet = property.getFacet(PropertySetterFacet.class);
+            if (!(setterFacet instanceof ImperativeFacet)) {
+                return null;
+            }
+            final List<Method> methods = ((ImperativeFacet) setterFacet).getMethods();
+            if (methods.size() != 1) {
+                return null;
+            }
+            try {
+                return MethodHandles.publicLookup().unreflect(methods.get(0)).asType(SETTER_TYPE);
+            } catch (final IllegalAccessException ex) {
+                return null;
+            }
+        }
+
+        /**
+         * Whether the property is a simple (not derived, nor contributed) value property, so can be
+         * {@link #get(Object) read} directly.
+         */
+        public boolean isReadDirectly() {
+            return readDirectly;
+        }
+
+        /**
+         * Reads the property of the domain object by calling its getter, as
+         * {@link OneToOneAssociation#get(org.apache.isis.core.metamodel.adapter.ObjectAdapter)} would, but without
+         * any adapters (and so without requiring the Isis session).
+         *
+         * <p>
+         *     Only for {@link #isReadDirectly() simple value properties}.
+         * </p>
+         */
+        public Object get(final Object domainObject) {
+            try {
+                return (Object) getter.invokeExact(domainObject);
+            } catch (final RuntimeException | Error ex) {
+                throw ex;
+            } catch (final Throwable ex) {
+                throw new ExcelService.Exception(ex);
+            }
+        }
+
+        /**
+         * Whether the property is {@link #isReadDirectly() read directly} and of a primitive numeric type, so is read
+         * (without boxing) by {@link #getNumeric(Object)} rather than {@link #get(Object)}.
+         */
+        public boolean isPrimitiveNumeric() {
+            return numericGetter != null;
+        }
+
+        /**
+         * As {@link #get(Object)}, for {@link #isPrimitiveNumeric() primitive numeric} properties.
+         */
+        public double getNumeric(final Object domainObject) {
+            try {
+                return (double) numericGetter.invokeExact(domainObject);
+            } catch (final RuntimeException | Error ex) {
+                throw ex;
+            } catch (final Throwable ex) {
+                throw new ExcelService.Exception(ex);
+            }
+        }
+
+        /**
+         * Whether the property can be {@link #set(Object, Object) set} directly.
+         */
+        public boolean hasSetter() {
+            return setter != null;
+        }
+
+        /**
+         * Sets the property of the (plain) domain object through the same method (setter or modify method) that
+         * {@link OneToOneAssociation#set(org.apache.isis.core.metamodel.adapter.ObjectAdapter, org.apache.isis.core.metamodel.adapter.ObjectAdapter)}
+         * would, but without any adapters.
+         *
+         * @param value - never <tt>null</tt>
+         */
+        public void set(final Object domainObject, final Object value) {
+            try {
+                setter.invokeExact(domainObject, value);
+            } catch (final RuntimeException | Error ex) {
+                throw ex;
+            } catch (final Throwable ex) {
+                throw new ExcelService.Exception(ex);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return ObjectContracts.toString(this, "name,type");
+        }
+    }
+
+    private final ObjectSpecification objectSpec;
+    private final ViewModelFacet viewModelFacet;
+    private final ObjectFactory objectFactory;
+    private final List<Column> exportColumns;
+    private final List<String> headers;
+    private final List<String> bookmarkHeaders;
+    private final Map<String, Column> importColumnByName;
+
+    ColumnPlan(final ObjectSpecification objectSpec) {
+        this.objectSpec = objectSpec;
+        this.viewModelFacet = objectSpec.getFacet(ViewModelFacet.class);
+        this.objectFactory = ObjectFactory.forSpec(objectSpec);
+
+        final List<Column> exportColumns = Lists.newArrayList();
+        final List<String> headers = Lists.newArrayList();
+        final List<String> bookmarkHeaders = Lists.newArrayList();
+        @SuppressWarnings("deprecation")
+        final List<? extends ObjectAssociation> propertyList = objectSpec.getAssociations(VISIBLE_PROPERTIES);
+        for (final ObjectAssociation property : propertyList) {
+            // bookmark columns follow all of the visible columns
+            final int bookmarkColumnIndex = propertyList.size() + bookmarkHeaders.size();
+            final Column column = new Column((OneToOneAssociation) property, bookmarkColumnIndex);
+            exportColumns.add(column);
+            headers.add(column.getName());
+            if (column.isReference()) {
+                bookmarkHeaders.add(column.getName() + BOOKMARK_HEADER_SUFFIX);
+            }
+        }
+        this.exportColumns = Collections.unmodifiableList(exportColumns);
+        this.headers = Collections.unmodifiableList(headers);
+        this.bookmarkHeaders = Collections.unmodifiableList(bookmarkHeaders);
+
+        // as previously looked up by name, the first matching property wins
+        final Map<String, Column> importColumnByName = Maps.newHashMap();
+        for (final ObjectAssociation association : objectSpec.getAssociations(Contributed.INCLUDED)) {
+            if (association instanceof OneToOneAssociation && !importColumnByName.containsKey(association.getName())) {
+                importColumnByName.put(association.getName(), new Column((OneToOneAssociation) association, -1));
+            }
+        }
+        this.importColumnByName = Collections.unmodifiableMap(importColumnByName);
+    }
+
+    ObjectSpecification getObjectSpecification() {
+        return objectSpec;
+    }
+
+    /**
+     * <tt>null</tt> unless the class is a view model.
+     */
+    ViewModelFacet getViewModelFacet() {
+        return viewModelFacet;
+    }
+
+    /**
+     * <tt>null</tt> unless imported objects (view models) can be instantiated without the container (and their
+     * adapters).
+     */
+    ObjectFactory getObjectFactory() {
+        return objectFactory;
+    }
+
+    /**
+     * The (visible) properties to export, in order.
+     */
+    List<Column> getExportColumns() {
+        return exportColumns;
+    }
+
+    List<String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * The headers of the hidden columns holding the bookmarks of the {@link Column#isReference() reference} columns,
+     * in order.
+     */
+    List<String> getBookmarkHeaders() {
+        return bookmarkHeaders;
+    }
+
+    /**
+     * The property (including contributed properties) to import for the header of a column, or <tt>null</tt> if none.
+     */
+    Column getImportColumn(final String header) {
+        return header != null ? importColumnByName.get(header) : null;
+    }
+
+    /**
+     * The reference property whose bookmarks are held in the column with the specified header, or <tt>null</tt> if
+     * the header is not that of a bookmark column.
+     */
+    Column getImportColumnForBookmarks(final String header) {
+        if (header == null || !header.endsWith(BOOKMARK_HEADER_SUFFIX)) {
+            return null;
+        }
+        final Column column = getImportColumn(header.substring(0, header.length() - BOOKMARK_HEADER_SUFFIX.length()));
+        return column != null && column.isReference() ? column : null;
+    }
+
+    // //////////////////////////////////////
+
+    /**
+     * A bounded cache of {@link ColumnPlan}s, keyed by class.
+     */
+    static class Cache {
+
+        private final LoadingCache<Class<?>, ColumnPlan> plans;
+        private SpecificationLoader specificationLoader;
+
+        Cache(final int maximumSize) {
+            plans = CacheBuilder.newBuilder()
+                    .maximumSize(maximumSize)
+                    .build(new CacheLoader<Class<?>, ColumnPlan>() {
+                        @Override
+                        public ColumnPlan load(final Class<?> cls) {
+                            return new ColumnPlan(specificationLoader.loadSpecification(cls));
+                        }
+                    });
+        }
+
+        synchronized ColumnPlan planFor(final Class<?> cls, final SpecificationLoader specificationLoader) {
+            if (this.specificationLoader != specificationLoader) {
+                // a different metamodel altogether
+                plans.invalidateAll();
+                this.specificationLoader = specificationLoader;
+            }
+            try {
+                final ColumnPlan plan = plans.get(cls);
+                if (plan.getObjectSpecification() == specificationLoader.loadSpecification(cls)) {
+                    return plan;
+                }
+                // the specification has been reloaded since the plan was computed
+                plans.invalidate(cls);
+                return plans.get(cls);
+            } catch (final ExecutionException | UncheckedExecutionException ex) {
+                throw new ExcelService.Exception(ex.getCause());
+            }
+        }
+    }
+}
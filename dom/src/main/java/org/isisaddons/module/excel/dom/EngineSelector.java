@@ -0,0 +1,146 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+/**
+ * Chooses the {@link ExcelEngine} for each export and import: small spreadsheets are handled in memory (with full
+ * fidelity), larger ones by the memory-bounded engines.
+ */
+class EngineSelector {
+
+    enum Choice {
+        /**
+         * Chosen according to the size of the spreadsheet.
+         */
+        AUTO,
+        /**
+         * See {@link InMemoryEngine}.
+         */
+        MEMORY,
+        /**
+         * See {@link StreamingEngine}.
+         */
+        STREAMING,
+        /**
+         * See {@link NativeEngine}.
+         */
+        NATIVE
+    }
+
+    private final ExcelEngine inMemoryEngine;
+    private final ExcelEngine streamingEngine;
+    private final ExcelEngine nativeEngine;
+
+    private final Choice exportChoice;
+    private final int streamingThreshold;
+    private final int nativeThreshold;
+    private final Choice importChoice;
+    private final long importStreamingThreshold;
+
+    /**
+     * @param streamingThreshold - exports of at least this many rows (or of an unknown number) are streamed
+     * @param nativeThreshold - exports of at least this many rows are written natively; <tt>0</tt> for never
+     * @param importStreamingThreshold - <tt>.xlsx</tt> files of at least this many bytes (or of an unknown size) are
+     *                                 read as a stream
+     */
+    EngineSelector(
+            final ExcelEngine inMemoryEngine,
+            final ExcelEngine streamingEngine,
+            final ExcelEngine nativeEngine,
+            final Choice exportChoice,
+            final int streamingThreshold,
+            final int nativeThreshold,
+            final Choice importChoice,
+            final long importStreamingThreshold) {
+        this.inMemoryEngine = inMemoryEngine;
+        this.streamingEngine = streamingEngine;
+        this.nativeEngine = nativeEngine;
+        this.exportChoice = exportChoice;
+        this.streamingThreshold = streamingThreshold;
+        this.nativeThreshold = nativeThreshold;
+        this.importChoice = importChoice;
+        this.importStreamingThreshold = importStreamingThreshold;
+    }
+
+    /**
+     * Only the native engine writes the zip package itself, so it is used for any export not compressed the
+     * {@link ExcelService.Compression#DEFAULT default} way, unless another engine was chosen explicitly.
+     *
+     * @param numRows - the number of rows to be exported, or <tt>-1</tt> if not known in advance
+     * @throws IllegalArgumentException - if not compressed the default way, but POI's in-memory or streaming engine
+     *                                  was chosen explicitly (see {@link #checkCompression(ExcelService.Compression)})
+     */
+    ExcelEngine forExport(final int numRows, final ExcelService.Compression compression) {
+        if (compression != ExcelService.Compression.DEFAULT) {
+            checkCompression(compression);
+            return nativeEngine;
+        }
+        switch (exportChoice) {
+            case MEMORY:
+                return inMemoryEngine;
+            case STREAMING:
+                return streamingEngine;
+            case NATIVE:
+                return nativeEngine;
+            default:
+                if (numRows >= 0 && numRows < streamingThreshold) {
+                    return inMemoryEngine;
+                }
+                if (numRows >= 0 && nativeThreshold > 0 && numRows >= nativeThreshold) {
+                    return nativeEngine;
+                }
+                return streamingEngine;
+        }
+    }
+
+    /**
+     * Rejects compression other than the {@link ExcelService.Compression#DEFAULT default} if the in-memory or
+     * streaming engine was chosen explicitly: POI always compresses at the default level, and quietly writing the
+     * export natively instead would override that choice.
+     */
+    void checkCompression(final ExcelService.Compression compression) {
+        if (compression != ExcelService.Compression.DEFAULT
+                && (exportChoice == Choice.MEMORY || exportChoice == Choice.STREAMING)) {
+            throw new IllegalArgumentException(String.format(
+                    "compression '%s' is only written by the native engine, but '%s' is '%s'",
+                    compression.name().toLowerCase(), ExcelService.KEY_EXPORT_ENGINE,
+                    exportChoice.name().toLowerCase()));
+        }
+    }
+
+    /**
+     * @param size - the size of the file, in bytes, or <tt>-1</tt> if not known in advance
+     * @param xlsx - whether the file is an <tt>.xlsx</tt> (zip) package; legacy <tt>.xls</tt> files can only be read
+     *             in memory
+     */
+    ExcelEngine forImport(final long size, final boolean xlsx) {
+        if (!xlsx) {
+            return inMemoryEngine;
+        }
+        switch (importChoice) {
+            case MEMORY:
+                return inMemoryEngine;
+            case STREAMING:
+                return streamingEngine;
+            case NATIVE:
+                return nativeEngine;
+            default:
+                return size >= 0 && size < importStreamingThreshold ? inMemoryEngine : streamingEngine;
+        }
+    }
+
+}
@@ -18,274 +18,688 @@ package org.isisaddons.module.excel.dom;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import com.google.common.base.Function;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.ss.SpreadsheetVersion;
 import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.CellStyle;
-import org.apache.poi.ss.usermodel.CreationHelper;
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.apache.isis.applib.DomainObjectContainer;
-import org.apache.isis.applib.annotation.Where;
-import org.apache.isis.applib.filter.Filter;
-import org.apache.isis.applib.filter.Filters;
+import org.apache.isis.applib.ViewModel;
+import org.apache.isis.applib.services.bookmark.Bookmark;
 import org.apache.isis.applib.services.bookmark.BookmarkService;
-import org.apache.isis.applib.util.ObjectContracts;
 import org.apache.isis.core.metamodel.adapter.ObjectAdapter;
 import org.apache.isis.core.metamodel.adapter.mgr.AdapterManager;
 import org.apache.isis.core.metamodel.facets.object.viewmodel.ViewModelFacet;
-import org.apache.isis.core.metamodel.spec.ObjectSpecification;
 import org.apache.isis.core.metamodel.spec.SpecificationLoader;
-import org.apache.isis.core.metamodel.spec.feature.Contributed;
-import org.apache.isis.core.metamodel.spec.feature.ObjectAssociation;
 import org.apache.isis.core.metamodel.spec.feature.OneToOneAssociation;
 
 class ExcelConverter {
 
-    private static final String XLSX_SUFFIX = ".xlsx";
+    /**
+     * Excel's limit, including the header row.
+     */
+    static final int MAX_ROWS_PER_SHEET = SpreadsheetVersion.EXCEL2007.getMaxRows();
+
+    /**
+     * Excel's limit on the length of a sheet's name.
+     */
+    static final int MAX_SHEET_NAME_LENGTH = 31;
+
+    /**
+     * The number of imported rows whose references are resolved together.
+     */
+    private static final int IMPORT_CHUNK_SIZE = 1000;
+
+    /**
+     * The number of imported rows decoded together, in parallel import mode.
+     */
+    private static final int DECODE_CHUNK_SIZE = 512;
+
+    enum ImportMode {
+        /**
+         * Rows are decoded and converted one after another, by the calling thread.
+         */
+        SEQUENTIAL,
+        /**
+         * The rows of <tt>.xlsx</tt> spreadsheets are decoded by a pool of threads, in chunks, as they are parsed;
+         * only the conversion into domain objects (requiring the Isis session) is done by the calling thread.
+         */
+        PARALLEL
+    }
 
-    @SuppressWarnings({ "unchecked", "deprecation" })
-    private static final Filter<ObjectAssociation> VISIBLE_PROPERTIES = Filters.and(
-            ObjectAssociation.Filters.PROPERTIES,
-            ObjectAssociation.Filters.staticallyVisible(Where.STANDALONE_TABLES));
+    /**
+     * How imported view models are created.
+     */
+    enum ViewModelImport {
+        /**
+         * Instantiated, injected and populated directly (where possible, see {@link ObjectFactory}); their memento
+         * (and so their identity) is only derived from their properties if and when they are later adapted.
+         *
+         * <p>
+         *     Only for view models whose memento is managed by the framework (annotated rather than implementing
+         *     {@link ViewModel}); those implementing {@link ViewModel#viewModelInit(String)} themselves are always
+         *     imported as per {@link #MEMENTO}, since it may do more than restore their properties.
+         * </p>
+         */
+        DIRECT,
+        /**
+         * Populated as a template, whose memento is then used to create the view model through
+         * {@link DomainObjectContainer#newViewModelInstance(Class, String)}, so that its <tt>viewModelInit</tt> is
+         * always called.
+         */
+        MEMENTO
+    }
 
-    static class RowFactory {
-        private final Sheet sheet;
-        private int rowNum;
+    /**
+     * The name of the <tt>sheetNum</tt>'th sheet (from 1) of an export: the first is named after the class, and each
+     * of the others (holding the rows that did not fit onto the previous sheets) is a
+     * {@link #continuationSheetName(String, int) continuation} of it.
+     *
+     * <p>
+     *     Names are truncated to {@link #MAX_SHEET_NAME_LENGTH Excel's limit}.  A continuation keeps as much of the
+     *     name as leaves room for its <tt>" (n)"</tt> suffix; since the name of the first sheet is truncated to a
+     *     longer prefix of the same name, the continuations of a sheet are found on import from its (truncated) name
+     *     alone.
+     * </p>
+     */
+    static String sheetName(final String sheetName, final int sheetNum) {
+        return sheetNum == 1 ? truncate(sheetName, MAX_SHEET_NAME_LENGTH) : continuationSheetName(sheetName, sheetNum);
+    }
 
-        RowFactory(final Sheet sheet) {
-            this.sheet = sheet;
-        }
+    /**
+     * The name of the <tt>sheetNum</tt>'th sheet (from 2 onwards) holding the rows that did not fit onto the first.
+     */
+    private static String continuationSheetName(final String sheetName, final int sheetNum) {
+        final String suffix = String.format(" (%d)", sheetNum);
+        return truncate(sheetName, MAX_SHEET_NAME_LENGTH - suffix.length()) + suffix;
+    }
+
+    private static String truncate(final String str, final int maxLength) {
+        return str.length() <= maxLength ? str : str.substring(0, maxLength);
+    }
 
-        public Row newRow() {
-            return sheet.createRow((short) rowNum++);
+    /**
+     * The indices of the sheets to import: the first sheet, followed by any of its continuation sheets (in order).
+     */
+    static List<Integer> sheetsToImport(final List<String> sheetNames) {
+        final List<Integer> sheetIndices = Lists.newArrayList();
+        if (sheetNames.isEmpty()) {
+            return sheetIndices;
+        }
+        sheetIndices.add(0);
+        final String sheetName = sheetNames.get(0);
+        for (int sheetNum = 2; ; sheetNum++) {
+            final int sheetIndex = sheetNames.indexOf(continuationSheetName(sheetName, sheetNum));
+            if (sheetIndex == -1) {
+                return sheetIndices;
+            }
+            sheetIndices.add(sheetIndex);
         }
     }
 
     // //////////////////////////////////////
 
     private final SpecificationLoader specificationLoader;
+    private final ColumnPlan.Cache columnPlans;
     private final AdapterManager adapterManager;
     private final BookmarkService bookmarkService;
+    private final EngineSelector engines;
+    private final SpillManager spillManager;
+    private final ExportPipeline.Mode exportMode;
+    private final ImportMode importMode;
+    private final ViewModelImport viewModelImport;
+    private final ExecutorService executor;
+    private final ExecutorService workerExecutor;
+    private final int parallelism;
 
     ExcelConverter(
             final SpecificationLoader specificationLoader,
+            final ColumnPlan.Cache columnPlans,
             final AdapterManager adapterManager,
-            final BookmarkService bookmarkService) {
+            final BookmarkService bookmarkService,
+            final EngineSelector engines,
+            final SpillManager spillManager,
+            final ExportPipeline.Mode exportMode,
+            final ImportMode importMode,
+            final ViewModelImport viewModelImport,
+            final ExecutorService executor,
+            final ExecutorService workerExecutor,
+            final int parallelism) {
         this.specificationLoader = specificationLoader;
+        this.columnPlans = columnPlans;
         this.adapterManager = adapterManager;
         this.bookmarkService = bookmarkService;
+        this.engines = engines;
+        this.spillManager = spillManager;
+        this.exportMode = exportMode;
+        this.importMode = importMode;
+        this.viewModelImport = viewModelImport;
+        this.executor = executor;
+        this.workerExecutor = workerExecutor;
+        this.parallelism = parallelism;
     }
 
     // //////////////////////////////////////
 
-    <T> File toFile(final Class<T> cls, final List<T> domainObjects) throws IOException {
-
-        final ObjectSpecification objectSpec = specificationLoader.loadSpecification(cls);
+    /**
+     * Writes the spreadsheet to the provided stream, which is left open.
+     *
+     * <p>
+     *     The domain objects are consumed one at a time, so need not all be held in memory at once.
+     * </p>
+     *
+     * @param numRows - the number of domain objects, or <tt>-1</tt> if not known in advance
+     */
+    <T> void toOutputStream(
+            final Class<T> cls,
+            final Iterator<? extends T> domainObjects,
+            final int numRows,
+            final ExcelService.Compression compression,
+            final OutputStream os) throws IOException {
 
-        final List<ObjectAdapter> adapters = Lists.transform(domainObjects, ObjectAdapter.Functions.adapterForUsing(adapterManager));
+        final ColumnPlan plan = planFor(cls);
+        final String sheetName = cls.getSimpleName();
 
-        @SuppressWarnings("deprecation")
-        final List<? extends ObjectAssociation> propertyList = objectSpec.getAssociations(VISIBLE_PROPERTIES);
+        final ExcelEngine engine = engines.forExport(numRows, compression);
+        try (ExcelEngine.SheetWriter sheetWriter = engine.newSheetWriter(plan, sheetName, compression, os)) {
+            new ExportPipeline(exportMode, executor).run(
+                    readRows(plan, domainObjects, newCellMarshaller()), sheetWriter);
+        }
+    }
 
-        final Workbook wb = new XSSFWorkbook();
-        final String sheetName = cls.getSimpleName();
-        final File tempFile = File.createTempFile(ExcelConverter.class.getName(), sheetName + XLSX_SUFFIX);
+    /**
+     * Reads the rows on this thread (and, if parallel, a pool), to be written by the engine.
+     */
+    private <T> Iterator<ExportRow> readRows(
+            final ColumnPlan plan,
+            final Iterator<? extends T> domainObjects,
+            final CellMarshaller cellMarshaller) {
+        final List<ColumnPlan.Column> columns = plan.getExportColumns();
+        if (isReadInParallel(plan)) {
+            return new ParallelRowReader<T>(
+                    domainObjects, columns, adapterManager, cellMarshaller, workerExecutor, parallelism);
+        }
+        final boolean anyPrimitiveNumeric = ExportRow.anyPrimitiveNumeric(columns);
+        return Iterators.transform(domainObjects, new Function<T, ExportRow>() {
+            @Override
+            public ExportRow apply(final T domainObject) {
+                ObjectAdapter objectAdapter = null;
+                final ExportRow row = new ExportRow(columns.size(), anyPrimitiveNumeric);
+                int i = 0;
+                for (final ColumnPlan.Column column : columns) {
+                    if (column.isReadDirectly()) {
+                        row.readDirectly(i++, column, domainObject);
+                        continue;
+                    }
+                    // fallback, through the metamodel
+                    if (objectAdapter == null) {
+                        objectAdapter = adapterManager.adapterFor(domainObject);
+                    }
+                    row.set(i++, cellMarshaller.getExportValue(objectAdapter, column));
+                }
+                return row;
+            }
+        });
+    }
 
-        final FileOutputStream fos = new FileOutputStream(tempFile);
-        final Sheet sheet = wb.createSheet(sheetName);
+    /**
+     * Only the properties of view models can safely be read outside of the Isis session.
+     */
+    private boolean isReadInParallel(final ColumnPlan plan) {
+        return exportMode == ExportPipeline.Mode.PARALLEL && plan.getViewModelFacet() != null;
+    }
 
-        final ExcelConverter.RowFactory rowFactory = new RowFactory(sheet);
-        final Row headerRow = rowFactory.newRow();
+    <T> List<T> fromBytes(
+            final Class<T> cls,
+            final byte[] bs,
+            final DomainObjectContainer container) throws IOException, InvalidFormatException {
 
-        // header row
-        int i = 0;
-        for (final ObjectAssociation property : propertyList) {
-            final Cell cell = headerRow.createCell((short) i++);
-            cell.setCellValue(property.getName());
+        // .xlsx files are zip packages
+        final boolean xlsx = bs.length >= 2 && bs[0] == 'P' && bs[1] == 'K';
+        final ExcelEngine engine = engines.forImport(bs.length, xlsx);
+        if (xlsx && engine.isStreamed()) {
+            // POI would otherwise inflate every part of the package into memory (see ExcelEngine#readSheets)
+            try (SpillManager.Spool spool = spillManager.spoolToFile(new ByteArrayInputStream(bs))) {
+                return readSheets(cls, engine, spool.getFile(), container);
+            }
+        }
+        try (ByteArrayInputStream bais = new ByteArrayInputStream(bs)) {
+            return readSheets(cls, engine, bais, container);
         }
+    }
 
-        final CellMarshaller cellMarshaller = newCellMarshaller(wb);
+    /**
+     * As {@link #fromBytes(Class, byte[], DomainObjectContainer)}, but reading the file from disk as required rather
+     * than into memory first (unless read by the {@link InMemoryEngine in-memory engine}).
+     */
+    <T> List<T> fromFile(
+            final Class<T> cls,
+            final File file,
+            final DomainObjectContainer container) throws IOException, InvalidFormatException {
 
-        // detail rows
-        for (final ObjectAdapter objectAdapter : adapters) {
-            final Row detailRow = rowFactory.newRow();
-            i = 0;
-            for (final ObjectAssociation oa : propertyList) {
-                final Cell cell = detailRow.createCell((short) i++);
-                final OneToOneAssociation otoa = (OneToOneAssociation) oa;
-                cellMarshaller.setCellValue(objectAdapter, otoa, cell);
-            }
+        final ExcelEngine engine = engines.forImport(file.length(), isZip(file));
+        return readSheets(cls, engine, file, container);
+    }
+
+    private static boolean isZip(final File file) throws IOException {
+        try (InputStream is = new FileInputStream(file)) {
+            return is.read() == 'P' && is.read() == 'K';
         }
+    }
 
-        // freeze panes
-        sheet.createFreezePane(0, 1);
+    /**
+     * Reads the first sheet (and any continuation sheets) using the engine, converting each row as it is read.
+     */
+    private <T> List<T> readSheets(
+            final Class<T> cls,
+            final ExcelEngine engine,
+            final InputStream is,
+            final DomainObjectContainer container) throws IOException, InvalidFormatException {
 
-        wb.write(fos);
-        fos.close();
-        return tempFile;
+        final ExecutorService decodeExecutor = decodeExecutorFor(engine);
+        final RowImporter<T> rowImporter = new RowImporter<>(cls, newCellMarshaller(), container, decodeExecutor);
+        engine.readSheets(is, rowImporter);
+        return rowImporter.getImportedItems();
     }
 
-    <T> List<T> fromBytes(
+    private <T> List<T> readSheets(
             final Class<T> cls,
-            final byte[] bs,
+            final ExcelEngine engine,
+            final File file,
             final DomainObjectContainer container) throws IOException, InvalidFormatException {
 
-        final List<T> importedItems = Lists.newArrayList();
+        final ExecutorService decodeExecutor = decodeExecutorFor(engine);
+        final RowImporter<T> rowImporter = new RowImporter<>(cls, newCellMarshaller(), container, decodeExecutor);
+        engine.readSheets(file, rowImporter);
+        return rowImporter.getImportedItems();
+    }
 
-        final ObjectSpecification objectSpec = specificationLoader.loadSpecification(cls);
-        final ViewModelFacet viewModelFacet = objectSpec.getFacet(ViewModelFacet.class);
+    private ExecutorService decodeExecutorFor(final ExcelEngine engine) {
+        return importMode == ImportMode.PARALLEL && engine.isDetached() ? workerExecutor : null;
+    }
 
-        try (ByteArrayInputStream bais = new ByteArrayInputStream(bs)) {
-            final Workbook wb = org.apache.poi.ss.usermodel.WorkbookFactory.create(bais);
-            final CellMarshaller cellMarshaller = this.newCellMarshaller(wb);
-
-            final Sheet sheet = wb.getSheetAt(0);
-
-            boolean header = true;
-            final Map<Integer, Property> propertyByColumn = Maps.newHashMap();
-
-            for (final Row row : sheet) {
-                if (header) {
-                    for (final Cell cell : row) {
-                        if (cell.getCellType() != Cell.CELL_TYPE_BLANK) {
-                            final int columnIndex = cell.getColumnIndex();
-                            final String propertyName = cellMarshaller.getStringCellValue(cell);
-                            final OneToOneAssociation property = getAssociation(objectSpec, propertyName);
-                            if (property != null) {
-                                final Class<?> propertyType = property.getSpecification().getCorrespondingClass();
-                                propertyByColumn.put(columnIndex, new Property(propertyName, property, propertyType));
-                            }
+    /**
+     * Converts the header row of each sheet into a mapping of columns to properties, and each subsequent row into a
+     * domain object.
+     *
+     * <p>
+     *     Each row is first decoded into the values of its properties (by this thread or, if an executor is provided,
+     *     by a pool in chunks), then has its references resolved (in chunks, each distinct bookmark once, see {@link BookmarkDeduplicator}), and is
+     *     finally converted into a domain object; rows are converted in the order of the sheet.  The values of cells
+     *     holding shared strings are decoded once per column and string (see {@link SharedStringDecodeCache}).
+     * </p>
+     */
+    private class RowImporter<T> implements XlsxEventReader.RowHandler {
+
+        private final Class<T> cls;
+        private final CellMarshaller cellMarshaller;
+        private final DomainObjectContainer container;
+        private final ExecutorService decodeExecutor;
+        private final int maxChunksInFlight;
+
+        private final ColumnPlan plan;
+        private final ViewModelFacet viewModelFacet;
+        private final boolean directViewModels;
+
+        private final List<T> importedItems = Lists.newArrayList();
+        private final BookmarkDeduplicator bookmarkDeduplicator = new BookmarkDeduplicator(bookmarkService);
+        private final List<PendingRow> pendingRows = Lists.newArrayList();
+        private final Deque<Future<List<PendingRow>>> chunksInFlight = new ArrayDeque<>();
+        private List<RawRow> rawRows = Lists.newArrayList();
+        private boolean header;
+
+        // the columns of the current sheet that map to properties; each property occupies a slot in the row's values
+        private final Map<Integer, Integer> slotByColumnIndex = Maps.newHashMap();
+        private final Map<Integer, Integer> bookmarkSlotByColumnIndex = Maps.newHashMap();
+        private final List<ColumnPlan.Column> slotColumns = Lists.newArrayList();
+        private boolean[] slotHasBookmarkColumn;
+        private SharedStringDecodeCache sharedStringDecodeCache;
+
+        // set if the objects can be instantiated, and the properties of the current sheet set, without any adapters
+        private ObjectFactory.Bound boundObjectFactory;
+        private ObjectFactory.Bound fastObjectFactory;
+
+        /**
+         * @param decodeExecutor - <tt>null</tt> unless rows are to be decoded in parallel
+         */
+        RowImporter(
+                final Class<T> cls,
+                final CellMarshaller cellMarshaller,
+                final DomainObjectContainer container,
+                final ExecutorService decodeExecutor) {
+            this.cls = cls;
+            this.cellMarshaller = cellMarshaller;
+            this.container = container;
+            this.decodeExecutor = decodeExecutor;
+            // enough to keep the pool busy while the oldest chunk is converted
+            this.maxChunksInFlight = parallelism * 2;
+            this.plan = planFor(cls);
+            this.viewModelFacet = plan.getViewModelFacet();
+            // the viewModelInit of a ViewModel is application code, which may do more than restore its properties
+            this.directViewModels = viewModelImport == ViewModelImport.DIRECT && !ViewModel.class.isAssignableFrom(cls);
+        }
+
+        @Override
+        public void sheet(final String sheetName) {
+            // the slots are about to change
+            flush();
+
+            // each continuation sheet repeats the header row
+            header = true;
+            slotByColumnIndex.clear();
+            bookmarkSlotByColumnIndex.clear();
+            slotColumns.clear();
+        }
+
+        @Override
+        public void row(final int rowNum, final List<CellValue> cells) {
+            if (header) {
+                for (final CellValue cell : cells) {
+                    if (cell.getCellType() != Cell.CELL_TYPE_BLANK) {
+                        final int columnIndex = cell.getColumnIndex();
+                        final String headerName = cellMarshaller.getStringCellValue(cell);
+                        final ColumnPlan.Column bookmarkColumn = plan.getImportColumnForBookmarks(headerName);
+                        if (bookmarkColumn != null) {
+                            bookmarkSlotByColumnIndex.put(columnIndex, slotFor(bookmarkColumn));
+                            continue;
                         }
-                    }
-                    header = false;
-                } else {
-                    // detail
-                    try {
-
-                        // Let's require at least one column to be not null for detecting a blank row.
-                        // Excel can have physical rows with cells empty that it seem do not existent for the user.
-                        ObjectAdapter templateAdapter = null;
-                        T imported = null;
-                        for (final Cell cell : row) {
-                            final int columnIndex = cell.getColumnIndex();
-                            final Property property = propertyByColumn.get(columnIndex);
-                            if (property != null) {
-                                final OneToOneAssociation otoa = property.getOneToOneAssociation();
-                                final Object value = cellMarshaller.getCellValue(cell, otoa);
-                                if (value != null) {
-                                    if (imported == null) {
-                                        // copy the row into a new object
-                                        imported = container.newTransientInstance(cls);
-                                        templateAdapter = this.adapterManager.adapterFor(imported);
-                                    }
-                                    final ObjectAdapter valueAdapter = this.adapterManager.adapterFor(value);
-                                    otoa.set(templateAdapter, valueAdapter);
-                                }
-                            } else {
-                                // not expected; just ignore.
-                            }
+                        final ColumnPlan.Column column = plan.getImportColumn(headerName);
+                        if (column != null) {
+                            slotByColumnIndex.put(columnIndex, slotFor(column));
                         }
+                    }
+                }
+                slotHasBookmarkColumn = new boolean[slotColumns.size()];
+                for (final int slot : bookmarkSlotByColumnIndex.values()) {
+                    slotHasBookmarkColumn[slot] = true;
+                }
+                sharedStringDecodeCache = new SharedStringDecodeCache(slotColumns.size());
+                fastObjectFactory = allSlotsHaveSetters() ? boundObjectFactory() : null;
+                header = false;
+            } else if (decodeExecutor == null) {
+                addPending(decode(rowNum, cells));
+            } else {
+                rawRows.add(new RawRow(rowNum, cells));
+                if (rawRows.size() == DECODE_CHUNK_SIZE) {
+                    submitRawRows();
+                }
+            }
+        }
 
-                        if (imported != null) {
-                            if (viewModelFacet != null) {
-                                // if there is a view model, then use the imported object as a template
-                                // in order to create a regular view model.
-                                final String memento = viewModelFacet.memento(imported);
-                                final T viewModel = container.newViewModelInstance(cls, memento);
-                                importedItems.add(viewModel);
-                            } else {
-                                // else, just return the imported items as simple transient instances.
-                                importedItems.add(imported);
-                            }
+        /**
+         * Reads the values of a detail row; does not require the Isis session (the slots only change between sheets,
+         * when no rows are being decoded).
+         */
+        private PendingRow decode(final int rowNum, final List<CellValue> cells) {
+            try {
+                final Object[] values = new Object[slotColumns.size()];
+                for (final CellValue cell : cells) {
+                    final int columnIndex = cell.getColumnIndex();
+                    final Integer bookmarkSlot = bookmarkSlotByColumnIndex.get(columnIndex);
+                    if (bookmarkSlot != null) {
+                        values[bookmarkSlot] = decodeBookmark(bookmarkSlot, cell);
+                        continue;
+                    }
+                    final Integer slot = slotByColumnIndex.get(columnIndex);
+                    if (slot != null) {
+                        if (!slotHasBookmarkColumn[slot]) {
+                            // otherwise the value is read from the bookmark column (rather than any comment)
+                            values[slot] = decodeValue(slot, cell);
                         }
-                    } catch (final Exception e) {
-                        bais.close();
-                        throw new ExcelService.Exception(String.format("Error processing Excel row nr. %d. Message: %s", row.getRowNum(), e.getMessage()), e);
+                    } else {
+                        // not expected; just ignore.
                     }
                 }
+                return new PendingRow(rowNum, values);
+            } catch (final Exception e) {
+                throw new ExcelService.Exception(String.format("Error processing Excel row nr. %d. Message: %s", rowNum, e.getMessage()), e);
             }
         }
 
-        return importedItems;
-    }
+        private Object decodeBookmark(final int slot, final CellValue cell) {
+            final int sharedStringIndex = cell.getSharedStringIndex();
+            if (sharedStringIndex == -1) {
+                return cellMarshaller.getBookmarkCellValue(cell);
+            }
+            final Object cached = sharedStringDecodeCache.get(slot, sharedStringIndex);
+            if (cached != null) {
+                return cached;
+            }
+            final Bookmark bookmark = cellMarshaller.getBookmarkCellValue(cell);
+            sharedStringDecodeCache.put(slot, sharedStringIndex, bookmark);
+            return bookmark;
+        }
 
-    private OneToOneAssociation getAssociation(final ObjectSpecification objectSpec, final String propertyName) {
-        final List<ObjectAssociation> associations = objectSpec.getAssociations(Contributed.INCLUDED);
-        for (final ObjectAssociation association : associations) {
-            if (propertyName.equals(association.getName()) && association instanceof OneToOneAssociation) {
-                return (OneToOneAssociation) association;
+        private Object decodeValue(final int slot, final CellValue cell) {
+            final ColumnPlan.Column column = slotColumns.get(slot);
+            final int sharedStringIndex = cell.getSharedStringIndex();
+            // the bookmark of a reference is read from the cell's comment, rather than its text
+            if (sharedStringIndex == -1 || column.getCodec() == null) {
+                return cellMarshaller.getCellValue(cell, column);
+            }
+            final Object cached = sharedStringDecodeCache.get(slot, sharedStringIndex);
+            if (cached != null) {
+                return cached;
+            }
+            final Object value = cellMarshaller.getCellValue(cell, column);
+            sharedStringDecodeCache.put(slot, sharedStringIndex, value);
+            return value;
+        }
+
+        private void submitRawRows() {
+            final List<RawRow> chunk = rawRows;
+            rawRows = Lists.newArrayListWithCapacity(DECODE_CHUNK_SIZE);
+            chunksInFlight.addLast(decodeExecutor.submit(new Callable<List<PendingRow>>() {
+                @Override
+                public List<PendingRow> call() {
+                    final List<PendingRow> decoded = Lists.newArrayListWithCapacity(chunk.size());
+                    for (final RawRow rawRow : chunk) {
+                        decoded.add(decode(rawRow.rowNum, rawRow.cells));
+                    }
+                    return decoded;
+                }
+            }));
+            while (chunksInFlight.size() > maxChunksInFlight) {
+                addDecoded(chunksInFlight.removeFirst());
             }
         }
-        return null;
-    }
 
-    static class Property {
-        private final String name;
-        private final Class<?> type;
-        private final OneToOneAssociation property;
-        private Object currentValue;
+        private void addDecoded(final Future<List<PendingRow>> chunk) {
+            final List<PendingRow> decoded;
+            try {
+                decoded = chunk.get();
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new ExcelService.Exception(ex);
+            } catch (final ExecutionException ex) {
+                final Throwable cause = ex.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new ExcelService.Exception(cause);
+            }
+            for (final PendingRow pendingRow : decoded) {
+                addPending(pendingRow);
+            }
+        }
+
+        private void addPending(final PendingRow pendingRow) {
+            final Object[] values = pendingRow.values;
+            for (int slot = 0; slot < values.length; slot++) {
+                final ColumnPlan.Column column = slotColumns.get(slot);
+                if (column.isReference() && values[slot] != null) {
+                    bookmarkDeduplicator.add((Bookmark) values[slot], column, pendingRow.rowNum);
+                }
+            }
+            pendingRows.add(pendingRow);
+            if (pendingRows.size() >= IMPORT_CHUNK_SIZE) {
+                materializePending();
+            }
+        }
 
-        public Property(final String name, final OneToOneAssociation property, final Class<?> type) {
-            this.name = name;
-            this.property = property;
-            this.type = type;
+        /**
+         * Decodes and converts all of the rows read so far.
+         */
+        private void flush() {
+            if (!rawRows.isEmpty()) {
+                submitRawRows();
+            }
+            while (!chunksInFlight.isEmpty()) {
+                addDecoded(chunksInFlight.removeFirst());
+            }
+            materializePending();
         }
 
-        public String getName() {
-            return name;
+        /**
+         * Looks up the bookmarks of the pending rows in one go, and then creates an object for each.
+         */
+        private void materializePending() {
+            bookmarkDeduplicator.resolvePending();
+            for (final PendingRow pendingRow : pendingRows) {
+                try {
+                    materialize(pendingRow.values);
+                } catch (final Exception e) {
+                    throw new ExcelService.Exception(String.format("Error processing Excel row nr. %d. Message: %s", pendingRow.rowNum, e.getMessage()), e);
+                }
+            }
+            pendingRows.clear();
         }
 
-        public OneToOneAssociation getOneToOneAssociation() {
-            return property;
+        private void materialize(final Object[] values) {
+            // Let's require at least one column to be not null for detecting a blank row.
+            // Excel can have physical rows with cells empty that it seem do not existent for the user.
+            ObjectAdapter templateAdapter = null;
+            T imported = null;
+            for (int slot = 0; slot < values.length; slot++) {
+                final ColumnPlan.Column column = slotColumns.get(slot);
+                final Object value = column.isReference() && values[slot] != null
+                        ? bookmarkDeduplicator.resolve((Bookmark) values[slot])
+                        : values[slot];
+                if (value == null) {
+                    continue;
+                }
+                if (fastObjectFactory != null) {
+                    // copy the row into a new object, directly
+                    if (imported == null) {
+                        imported = cls.cast(fastObjectFactory.newInstance());
+                    }
+                    column.set(imported, value);
+                } else {
+                    // copy the row into a new object, through the metamodel
+                    if (imported == null) {
+                        imported = container.newTransientInstance(cls);
+                        templateAdapter = adapterManager.adapterFor(imported);
+                    }
+                    final OneToOneAssociation otoa = column.getProperty();
+                    final ObjectAdapter valueAdapter = adapterManager.adapterFor(value);
+                    otoa.set(templateAdapter, valueAdapter);
+                }
+            }
+
+            if (imported != null) {
+                if (viewModelFacet != null && fastObjectFactory != null && directViewModels) {
+                    // already a fully populated (and injected) view model, so no need to round-trip its memento.
+                    importedItems.add(imported);
+                } else if (viewModelFacet != null) {
+                    // if there is a view model, then use the imported object as a template
+                    // in order to create a regular view model.
+                    final String memento = viewModelFacet.memento(imported);
+                    final T viewModel = container.newViewModelInstance(cls, memento);
+                    importedItems.add(viewModel);
+                } else {
+                    // else, just return the imported items as simple transient instances.
+                    importedItems.add(imported);
+                }
+            }
         }
 
-        public Class<?> getType() {
-            return type;
+        private boolean allSlotsHaveSetters() {
+            for (final ColumnPlan.Column column : slotColumns) {
+                if (!column.hasSetter()) {
+                    return false;
+                }
+            }
+            return true;
         }
 
-        public Object getCurrentValue() {
-            return currentValue;
+        /**
+         * Looks up the services to inject into the imported objects, once per import.
+         */
+        private ObjectFactory.Bound boundObjectFactory() {
+            final ObjectFactory objectFactory = plan.getObjectFactory();
+            if (boundObjectFactory == null && objectFactory != null) {
+                boundObjectFactory = objectFactory.bind(container);
+            }
+            return boundObjectFactory;
         }
 
-        public void setCurrentValue(final Object currentValue) {
-            this.currentValue = currentValue;
+        private int slotFor(final ColumnPlan.Column column) {
+            final int slot = slotColumns.indexOf(column);
+            if (slot != -1) {
+                return slot;
+            }
+            slotColumns.add(column);
+            return slotColumns.size() - 1;
         }
 
-        @Override
-        public String toString() {
-            return ObjectContracts.toString(this, "name,type,currentValue");
+        List<T> getImportedItems() {
+            flush();
+            return importedItems;
         }
     }
 
-    @SuppressWarnings("unused")
-    private void autoSize(final Sheet sh, final int numProps) {
-        for (int prop = 0; prop < numProps; prop++) {
-            sh.autoSizeColumn(prop);
+    /**
+     * A row as parsed, yet to be decoded.
+     */
+    private static class RawRow {
+        private final int rowNum;
+        private final List<CellValue> cells;
+
+        RawRow(final int rowNum, final List<CellValue> cells) {
+            this.rowNum = rowNum;
+            this.cells = cells;
         }
     }
 
-    // //////////////////////////////////////
+    /**
+     * A row whose values have been read, but whose references have yet to be resolved.
+     */
+    private static class PendingRow {
+        private final int rowNum;
+        private final Object[] values;
+
+        PendingRow(final int rowNum, final Object[] values) {
+            this.rowNum = rowNum;
+            this.values = values;
+        }
+    }
 
-    protected CellMarshaller newCellMarshaller(final Workbook wb) {
-        final CellStyle dateCellStyle = createDateFormatCellStyle(wb);
-        final CellMarshaller cellMarshaller = new CellMarshaller(bookmarkService, dateCellStyle);
-        return cellMarshaller;
+    private ColumnPlan planFor(final Class<?> cls) {
+        return columnPlans.planFor(cls, specificationLoader);
     }
 
-    protected CellStyle createDateFormatCellStyle(final Workbook wb) {
-        final CreationHelper createHelper = wb.getCreationHelper();
-        final short dateFormat = createHelper.createDataFormat().getFormat("yyyy-mm-dd");
-        final CellStyle dateCellStyle = wb.createCellStyle();
-        dateCellStyle.setDataFormat(dateFormat);
-        return dateCellStyle;
+    // //////////////////////////////////////
+
+    /**
+     * For reading values only (from exported objects, or imported cells); cells are written by the engine.
+     */
+    protected CellMarshaller newCellMarshaller() {
+        return new CellMarshaller(bookmarkService, null, null);
     }
 
 }
@@ -0,0 +1,86 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+
+/**
+ * Writes and reads the cells of spreadsheets, independently of the domain objects being exported or imported (which
+ * are the concern of {@link ExcelConverter}).
+ *
+ * <p>
+ *     Implementations differ in their fidelity and in how their memory use grows with the size of the spreadsheet;
+ *     {@link EngineSelector} chooses between them.
+ * </p>
+ */
+interface ExcelEngine {
+
+    /**
+     * Starts a spreadsheet of the export columns of the plan, compressed as specified and written to the provided
+     * stream (which is left open).  Engines writing through POI only support the
+     * {@link ExcelService.Compression#DEFAULT default} compression.
+     *
+     * <p>
+     *     The header row is written straight away; the returned writer must be closed (whether or not it was
+     *     {@link SheetWriter#finish() finished}) to release any resources held.
+     * </p>
+     */
+    SheetWriter newSheetWriter(
+            ColumnPlan plan,
+            String sheetName,
+            ExcelService.Compression compression,
+            OutputStream os) throws IOException;
+
+    /**
+     * Reads the rows of the first sheet of the spreadsheet, followed by those of its continuation sheets (if any).
+     *
+     * <p>
+     *     Even when {@link #isStreamed() streamed}, a package read from a stream is first inflated into memory in its
+     *     entirety (by POI); large spreadsheets should be read from a
+     *     {@link #readSheets(File, XlsxEventReader.RowHandler) file}.
+     * </p>
+     *
+     * @see ExcelConverter#sheetsToImport(java.util.List)
+     */
+    void readSheets(InputStream is, XlsxEventReader.RowHandler rowHandler) throws IOException, InvalidFormatException;
+
+    /**
+     * As {@link #readSheets(InputStream, XlsxEventReader.RowHandler)}, reading from the file.
+     */
+    void readSheets(File file, XlsxEventReader.RowHandler rowHandler) throws IOException, InvalidFormatException;
+
+    /**
+     * Whether the rows of <tt>.xlsx</tt> files are read as a stream of XML events, so that (when read from a file)
+     * memory use does not grow with the number of rows.
+     */
+    boolean isStreamed();
+
+    /**
+     * Whether the cells handed to the {@link XlsxEventReader.RowHandler} are detached from the spreadsheet, and so
+     * can be decoded by other threads.
+     */
+    boolean isDetached();
+
+    interface SheetWriter extends ExportPipeline.RowWriter, Closeable {
+    }
+
+}
@@ -16,31 +16,57 @@
  */
 package org.isisaddons.module.excel.dom;
 
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import org.apache.poi.util.IOUtils;
 import org.apache.isis.applib.value.Blob;
 
 class ExcelFileBlobConverter {
 
+    /**
+     * Rough size of a (zipped) row, used to presize the buffer so that small exports rarely need it to grow.
+     */
+    private static final int ESTIMATED_BYTES_PER_ROW = 64;
+    private static final int ESTIMATED_BYTES_OVERHEAD = 8 * 1024;
+
+    /**
+     * Caps the presized buffer, so that a large export (which may well compress far better than estimated) does not
+     * allocate its estimated size up front; beyond this, the buffer grows as it is written (up to the spill threshold,
+     * see {@link SpillManager#newOutputStream(int)}).
+     */
+    private static final int MAX_INITIAL_SIZE = 1024 * 1024;
 
     // //////////////////////////////////////
-    
-    Blob toBlob(final String name, final File file) {
-        FileInputStream fis = null;
-        ByteArrayOutputStream baos = null;
-        try {
-            fis = new FileInputStream(file);
-            baos = new ByteArrayOutputStream();
-            IOUtils.copy(fis, baos);
-            return new Blob(name, ExcelService.XSLX_MIME_TYPE, baos.toByteArray());
-        } catch (IOException ex) {
-            throw new ExcelService.Exception(ex);
-        } finally {
-            IOUtils.closeQuietly(fis);
-            IOUtils.closeQuietly(baos);
+
+    BlobOutputStream newOutputStream(final int numRows, final SpillManager spillManager) {
+        final long estimatedSize = ESTIMATED_BYTES_OVERHEAD + (long) numRows * ESTIMATED_BYTES_PER_ROW;
+        return new BlobOutputStream(spillManager.newOutputStream((int) Math.min(estimatedSize, MAX_INITIAL_SIZE)));
+    }
+
+    /**
+     * Held in memory up to the spill threshold, and in a temporary file (deleted when closed) beyond it.
+     *
+     * <p>
+     *     Whilst in memory, the buffer is copied whenever it grows (doubling in size), and once more by {@link
+     *     #toBlob(String)} to trim it to size, unless it happens to be exactly full.  Once spilled, the export is read
+     *     back from the file into an array of exactly its size, so it is never held more than once.
+     * </p>
+     */
+    static class BlobOutputStream extends FilterOutputStream {
+
+        private final SpillManager.SpillOutputStream spill;
+
+        BlobOutputStream(final SpillManager.SpillOutputStream spill) {
+            super(spill);
+            this.spill = spill;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            spill.write(b, off, len);
+        }
+
+        Blob toBlob(final String name) throws IOException {
+            return new Blob(name, ExcelService.XSLX_MIME_TYPE, spill.toByteArray());
         }
     }
 
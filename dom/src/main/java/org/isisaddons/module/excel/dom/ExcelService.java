@@ -18,10 +18,25 @@ package org.isisaddons.module.excel.dom;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
 
@@ -30,11 +45,14 @@ import org.apache.isis.applib.RecoverableException;
 import org.apache.isis.applib.annotation.DomainService;
 import org.apache.isis.applib.annotation.NatureOfService;
 import org.apache.isis.applib.annotation.Programmatic;
+import org.apache.isis.applib.query.QueryDefault;
 import org.apache.isis.applib.services.bookmark.BookmarkService;
 import org.apache.isis.applib.value.Blob;
+import org.apache.isis.core.metamodel.adapter.ObjectAdapter;
 import org.apache.isis.core.metamodel.adapter.mgr.AdapterManager;
 import org.apache.isis.core.metamodel.services.ServicesInjectorSpi;
 import org.apache.isis.core.metamodel.spec.SpecificationLoaderSpi;
+import org.apache.isis.core.runtime.persistence.adaptermanager.AdapterManagerDefault;
 import org.apache.isis.core.runtime.system.context.IsisContext;
 import org.apache.isis.core.runtime.system.persistence.PersistenceSession;
 
@@ -45,6 +63,167 @@ public class ExcelService {
 
     public static final String XSLX_MIME_TYPE = "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
 
+    /**
+     * Which engine writes exports: either <tt>auto</tt> (chosen by the number of rows, see
+     * {@link #KEY_STREAMING_THRESHOLD} and {@link #KEY_NATIVE_THRESHOLD}), <tt>memory</tt> (POI's in-memory workbook),
+     * <tt>streaming</tt> (POI's streaming workbook, holding only a bounded window of rows in memory) or <tt>native</tt>
+     * (directly as SpreadsheetML, with much less overhead per cell; bookmarks are then always written to hidden
+     * columns).
+     */
+    public static final String KEY_EXPORT_ENGINE = "isis.services.excel.export.engine";
+    public static final String EXPORT_ENGINE_DEFAULT = "auto";
+
+    /**
+     * Exports of at least this many rows (or of an unknown number of rows) are written by the streaming engine rather
+     * than in memory; set to <tt>0</tt> to always stream.
+     */
+    public static final String KEY_STREAMING_THRESHOLD = "isis.services.excel.streaming.threshold";
+    public static final int STREAMING_THRESHOLD_DEFAULT = 10000;
+
+    /**
+     * Exports of at least this many rows are written by the native engine; set to <tt>0</tt> to never do so.
+     */
+    public static final String KEY_NATIVE_THRESHOLD = "isis.services.excel.native.threshold";
+    public static final int NATIVE_THRESHOLD_DEFAULT = 100000;
+
+    /**
+     * How the native engine writes strings: either <tt>auto</tt> (in a shared strings table for columns whose values
+     * repeat, otherwise inline), <tt>shared</tt> (always in the shared strings table) or <tt>inline</tt>.
+     */
+    public static final String KEY_SHARED_STRINGS = "isis.services.excel.native.sharedStrings";
+    public static final String SHARED_STRINGS_DEFAULT = "auto";
+
+    /**
+     * The number of rows kept in memory when exporting in streaming mode; older rows are flushed to disk.
+     */
+    public static final String KEY_STREAMING_WINDOW_SIZE = "isis.services.excel.streaming.windowSize";
+    public static final int STREAMING_WINDOW_SIZE_DEFAULT = 100;
+
+    /**
+     * Whether the rows flushed to disk when exporting in streaming mode are compressed.  These files are created by
+     * POI in the system's temporary directory (<tt>java.io.tmpdir</tt>), not in the {@link #KEY_SPILL_DIRECTORY}.
+     */
+    public static final String KEY_STREAMING_COMPRESS_TEMP_FILES = "isis.services.excel.streaming.compressTempFiles";
+    public static final boolean STREAMING_COMPRESS_TEMP_FILES_DEFAULT = false;
+
+    /**
+     * The directory holding the temporary files of imports (those from a stream larger than
+     * {@link #KEY_SPILL_THRESHOLD}, and those to be read as a stream of XML events, see {@link #KEY_IMPORT_ENGINE})
+     * and of exports to a Blob larger than that threshold; defaults to the system's temporary directory.  Only these
+     * files are kept here (and {@link #getSpilledFiles() counted}); the rows flushed by the streaming export engine
+     * are not.
+     */
+    public static final String KEY_SPILL_DIRECTORY = "isis.services.excel.spill.directory";
+
+    /**
+     * Imports from a stream, and exports to a Blob, of at most this many bytes are held in memory rather than
+     * (first) written to disk.
+     */
+    public static final String KEY_SPILL_THRESHOLD = "isis.services.excel.spill.threshold";
+    public static final int SPILL_THRESHOLD_DEFAULT = 1024 * 1024;
+
+    /**
+     * Which engine reads <tt>.xlsx</tt> imports: either <tt>auto</tt> (chosen by the size of the file, see
+     * {@link #KEY_IMPORT_STREAMING_THRESHOLD}), <tt>memory</tt> (POI's in-memory workbook) or <tt>streaming</tt> (as a
+     * stream of XML events).  <tt>native</tt> is also accepted, and reads exactly as <tt>streaming</tt> does.  Legacy
+     * <tt>.xls</tt> files are always read in memory.
+     */
+    public static final String KEY_IMPORT_ENGINE = "isis.services.excel.import.engine";
+    public static final String IMPORT_ENGINE_DEFAULT = "auto";
+
+    /**
+     * <tt>.xlsx</tt> files of at least this many bytes are read as a stream of XML events rather than in memory.
+     */
+    public static final String KEY_IMPORT_STREAMING_THRESHOLD = "isis.services.excel.import.streaming.threshold";
+    public static final int IMPORT_STREAMING_THRESHOLD_DEFAULT = 1024 * 1024;
+
+    /**
+     * How exports are compressed, unless specified by the caller: either <tt>default</tt>, <tt>store</tt>,
+     * <tt>fast</tt> or <tt>max</tt> (see {@link Compression}).  Anything but <tt>default</tt> is written by the native
+     * engine (see {@link #KEY_EXPORT_ENGINE}), as POI always compresses at the default level; it is therefore
+     * rejected if the engine is configured as <tt>memory</tt> or <tt>streaming</tt>.
+     */
+    public static final String KEY_COMPRESSION = "isis.services.excel.compression";
+    public static final String COMPRESSION_DEFAULT = "default";
+
+    /**
+     * How the bookmarks of referenced objects are exported by the in-memory engine: either <tt>comments</tt> (a comment
+     * on each cell) or <tt>columns</tt> (a hidden column per reference property, far more compact).  The streaming and
+     * native engines (and so, by default, large exports) always use <tt>columns</tt>.  Both are always importable.
+     */
+    public static final String KEY_BOOKMARKS = "isis.services.excel.bookmarks";
+    public static final String BOOKMARKS_DEFAULT = "comments";
+
+    /**
+     * How exports are run: either <tt>sequential</tt> (each row read and then written, by the calling thread),
+     * <tt>pipelined</tt> (rows written and compressed by a separate thread while the next are fetched and read) or
+     * <tt>parallel</tt> (as pipelined, but with the rows of view models read by a pool of threads).
+     */
+    public static final String KEY_EXPORT_MODE = "isis.services.excel.export.mode";
+    public static final String EXPORT_MODE_DEFAULT = "sequential";
+
+    /**
+     * How imports are run: either <tt>sequential</tt> (each row decoded and converted by the calling thread) or
+     * <tt>parallel</tt> (the rows of <tt>.xlsx</tt> spreadsheets decoded by a pool of threads, and only then converted
+     * into domain objects by the calling thread).
+     */
+    public static final String KEY_IMPORT_MODE = "isis.services.excel.import.mode";
+    public static final String IMPORT_MODE_DEFAULT = "sequential";
+
+    /**
+     * How imported view models are created: either <tt>memento</tt> (populated as a template whose memento is then
+     * used to create the view model, so that its <tt>viewModelInit</tt> is called) or <tt>direct</tt> (instantiated
+     * and populated directly, where possible, without creating or parsing a memento).  Even if <tt>direct</tt>, view
+     * models implementing {@link org.apache.isis.applib.ViewModel} (and so their own <tt>viewModelInit</tt>) are
+     * created from their memento.
+     */
+    public static final String KEY_IMPORT_VIEW_MODELS = "isis.services.excel.import.viewModels";
+    public static final String IMPORT_VIEW_MODELS_DEFAULT = "memento";
+
+    /**
+     * The number of threads reading rows in <tt>parallel</tt> export mode, and decoding rows in <tt>parallel</tt>
+     * import mode; defaults to the number of processors.
+     */
+    public static final String KEY_PARALLELISM = "isis.services.excel.parallelism";
+
+    /**
+     * The number of objects fetched at a time when exporting from a query.
+     */
+    public static final String KEY_QUERY_PAGE_SIZE = "isis.services.excel.query.pageSize";
+    public static final int QUERY_PAGE_SIZE_DEFAULT = 1000;
+
+    /**
+     * How the parts of an exported spreadsheet (which is a zip package) are compressed.
+     */
+    public enum Compression {
+        /**
+         * Deflate's default level, balancing size against speed.
+         */
+        DEFAULT(Deflater.DEFAULT_COMPRESSION),
+        /**
+         * Not compressed at all; the fastest to write, for example for round trips over a LAN.
+         */
+        STORE(Deflater.NO_COMPRESSION),
+        /**
+         * Compressed at the fastest level.
+         */
+        FAST(Deflater.BEST_SPEED),
+        /**
+         * Compressed as much as possible; the slowest to write, for example for reports to be emailed.
+         */
+        MAX(Deflater.BEST_COMPRESSION);
+
+        private final int level;
+
+        Compression(final int level) {
+            this.level = level;
+        }
+
+        int getLevel() {
+            return level;
+        }
+    }
+
     public static class Exception extends RecoverableException {
 
         private static final long serialVersionUID = 1L;
@@ -59,13 +238,30 @@ public class ExcelService {
     }
 
 
+    /**
+     * The maximum number of classes whose column plans (properties, and how to convert them) are cached.
+     */
+    private static final int COLUMN_PLANS_MAXIMUM_SIZE = 100;
+
     // //////////////////////////////////////
 
     private final ExcelFileBlobConverter excelFileBlobConverter;
+    private final ColumnPlan.Cache columnPlans;
     private BookmarkService bookmarkService;
+    private EngineSelector engines;
+    private SpillManager spillManager = new SpillManager(null, SPILL_THRESHOLD_DEFAULT);
+    private int queryPageSize = QUERY_PAGE_SIZE_DEFAULT;
+    private Compression compression = Compression.DEFAULT;
+    private ExportPipeline.Mode exportMode = ExportPipeline.Mode.SEQUENTIAL;
+    private ExcelConverter.ImportMode importMode = ExcelConverter.ImportMode.SEQUENTIAL;
+    private ExcelConverter.ViewModelImport viewModelImport = ExcelConverter.ViewModelImport.MEMENTO;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private ExecutorService executor;
+    private ExecutorService workerExecutor;
     
     public ExcelService() {
         excelFileBlobConverter = new ExcelFileBlobConverter();
+        columnPlans = new ColumnPlan.Cache(COLUMN_PLANS_MAXIMUM_SIZE);
     }
 
     // //////////////////////////////////////
@@ -74,6 +270,109 @@ public class ExcelService {
     @PostConstruct
     public void init(final Map<String,String> properties) {
         bookmarkService = getServicesInjector().lookupService(BookmarkService.class);
+        engines = newEngineSelector(properties);
+        spillManager = newSpillManager(properties);
+        compression = enumProperty(properties, KEY_COMPRESSION, COMPRESSION_DEFAULT, Compression.class);
+        engines.checkCompression(compression);
+        exportMode = enumProperty(properties, KEY_EXPORT_MODE, EXPORT_MODE_DEFAULT, ExportPipeline.Mode.class);
+        importMode = enumProperty(properties, KEY_IMPORT_MODE, IMPORT_MODE_DEFAULT, ExcelConverter.ImportMode.class);
+        viewModelImport = enumProperty(
+                properties, KEY_IMPORT_VIEW_MODELS, IMPORT_VIEW_MODELS_DEFAULT, ExcelConverter.ViewModelImport.class);
+        parallelism = intProperty(properties, KEY_PARALLELISM, Runtime.getRuntime().availableProcessors());
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException(
+                    String.format("'%s' must be positive, was '%d'", KEY_PARALLELISM, parallelism));
+        }
+        queryPageSize = intProperty(properties, KEY_QUERY_PAGE_SIZE, QUERY_PAGE_SIZE_DEFAULT);
+        if (queryPageSize <= 0) {
+            throw new IllegalArgumentException(
+                    String.format("'%s' must be positive, was '%d'", KEY_QUERY_PAGE_SIZE, queryPageSize));
+        }
+    }
+
+    private EngineSelector newEngineSelector(final Map<String, String> properties) {
+        final CellMarshaller.BookmarkEncoding bookmarkEncoding =
+                enumProperty(properties, KEY_BOOKMARKS, BOOKMARKS_DEFAULT, CellMarshaller.BookmarkEncoding.class);
+        final int streamingWindowSize =
+                intProperty(properties, KEY_STREAMING_WINDOW_SIZE, STREAMING_WINDOW_SIZE_DEFAULT);
+        final boolean compressTempFiles = booleanProperty(
+                properties, KEY_STREAMING_COMPRESS_TEMP_FILES, STREAMING_COMPRESS_TEMP_FILES_DEFAULT);
+        return new EngineSelector(
+                new InMemoryEngine(bookmarkService, bookmarkEncoding),
+                new StreamingEngine(bookmarkService, streamingWindowSize, compressTempFiles),
+                new NativeEngine(
+                        enumProperty(properties, KEY_SHARED_STRINGS, SHARED_STRINGS_DEFAULT, SharedStrings.Strategy.class)),
+                enumProperty(properties, KEY_EXPORT_ENGINE, EXPORT_ENGINE_DEFAULT, EngineSelector.Choice.class),
+                intProperty(properties, KEY_STREAMING_THRESHOLD, STREAMING_THRESHOLD_DEFAULT),
+                intProperty(properties, KEY_NATIVE_THRESHOLD, NATIVE_THRESHOLD_DEFAULT),
+                enumProperty(properties, KEY_IMPORT_ENGINE, IMPORT_ENGINE_DEFAULT, EngineSelector.Choice.class),
+                intProperty(properties, KEY_IMPORT_STREAMING_THRESHOLD, IMPORT_STREAMING_THRESHOLD_DEFAULT));
+    }
+
+    private static SpillManager newSpillManager(final Map<String, String> properties) {
+        final String directoryName = properties.get(KEY_SPILL_DIRECTORY);
+        final File directory = directoryName != null ? new File(directoryName.trim()) : null;
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException(
+                    String.format("'%s' must be a directory, was '%s'", KEY_SPILL_DIRECTORY, directoryName));
+        }
+        final int threshold = intProperty(properties, KEY_SPILL_THRESHOLD, SPILL_THRESHOLD_DEFAULT);
+        if (threshold < 0) {
+            throw new IllegalArgumentException(
+                    String.format("'%s' must not be negative, was '%d'", KEY_SPILL_THRESHOLD, threshold));
+        }
+        return new SpillManager(directory, threshold);
+    }
+
+    @Programmatic
+    @PreDestroy
+    public synchronized void shutdown() {
+        spillManager.shutdown();
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        if (workerExecutor != null) {
+            workerExecutor.shutdownNow();
+        }
+    }
+
+    private static <E extends Enum<E>> E enumProperty(
+            final Map<String, String> properties,
+            final String key,
+            final String defaultValue,
+            final Class<E> enumType) {
+        final String value = properties.get(key);
+        final String name = (value != null ? value : defaultValue).trim().toUpperCase();
+        try {
+            return Enum.valueOf(enumType, name);
+        } catch (final IllegalArgumentException ex) {
+            final List<String> allowed = Lists.newArrayList();
+            for (final E constant : enumType.getEnumConstants()) {
+                allowed.add("'" + constant.name().toLowerCase() + "'");
+            }
+            throw new IllegalArgumentException(
+                    String.format("'%s' must be one of %s, was '%s'", key, Joiner.on(", ").join(allowed), value), ex);
+        }
+    }
+
+    private static boolean booleanProperty(
+            final Map<String, String> properties,
+            final String key,
+            final boolean defaultValue) {
+        final String value = properties.get(key);
+        return value != null ? Boolean.parseBoolean(value.trim()) : defaultValue;
+    }
+
+    private static int intProperty(final Map<String, String> properties, final String key, final int defaultValue) {
+        final String value = properties.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (final NumberFormatException ex) {
+            throw new IllegalArgumentException(String.format("'%s' must be an integer, was '%s'", key, value), ex);
+        }
     }
 
     // //////////////////////////////////////
@@ -88,29 +387,250 @@ public class ExcelService {
      *     work with entities.  This also makes it easier to maintain backward compatibility in the future if the
      *     persistence model changes; using view models represents a stable API for import/export.
      * </p>
+     *
+     * <p>
+     *     Large exports are written by a memory-bounded engine (see {@link #KEY_EXPORT_ENGINE}), so that memory use
+     *     does not grow with the number of rows.  Rows beyond Excel's limit of 1,048,576 rows per sheet continue
+     *     onto further sheets (<tt>Foo (2)</tt>, <tt>Foo (3)</tt> and so on), each with its own header row; these
+     *     are read back as a single table by {@link #fromExcel(org.apache.isis.applib.value.Blob, Class)}.
+     * </p>
      */
     @Programmatic
     public <T> Blob toExcel(
             final List<T> domainObjects, 
             final Class<T> cls, 
             final String fileName) throws ExcelService.Exception {
+        return toBlob(domainObjects.iterator(), domainObjects.size(), cls, compression, fileName);
+    }
+
+    /**
+     * As {@link #toExcel(java.util.List, Class, String)}, but writing the spreadsheet directly to the provided
+     * stream (for example, that of an HTTP response), which is left open.
+     */
+    @Programmatic
+    public <T> void toExcel(
+            final List<T> domainObjects,
+            final Class<T> cls,
+            final OutputStream os) throws ExcelService.Exception {
+        toExcel(domainObjects.iterator(), domainObjects.size(), cls, compression, os);
+    }
+
+    /**
+     * As {@link #toExcel(java.util.List, Class, String)}, but consuming the domain objects one at a time (for example,
+     * from a cursor), so that they need not all be loaded into memory first.
+     */
+    @Programmatic
+    public <T> Blob toExcel(
+            final Iterable<T> domainObjects,
+            final Class<T> cls,
+            final String fileName) throws ExcelService.Exception {
+        return toBlob(domainObjects.iterator(), sizeOf(domainObjects), cls, compression, fileName);
+    }
+
+    /**
+     * As {@link #toExcel(Iterable, Class, String)}, but writing the spreadsheet directly to the provided stream,
+     * which is left open.
+     */
+    @Programmatic
+    public <T> void toExcel(
+            final Iterable<T> domainObjects,
+            final Class<T> cls,
+            final OutputStream os) throws ExcelService.Exception {
+        toExcel(domainObjects.iterator(), sizeOf(domainObjects), cls, compression, os);
+    }
+
+    /**
+     * As {@link #toExcel(Iterable, Class, String)}, but compressed as specified rather than as configured (see
+     * {@link #KEY_COMPRESSION}).
+     *
+     * @throws IllegalArgumentException - if not compressed the default way, but the export engine is configured as
+     *                                  <tt>memory</tt> or <tt>streaming</tt>
+     */
+    @Programmatic
+    public <T> Blob toExcel(
+            final Iterable<T> domainObjects,
+            final Class<T> cls,
+            final String fileName,
+            final Compression compression) throws ExcelService.Exception {
+        return toBlob(domainObjects.iterator(), sizeOf(domainObjects), cls, compression, fileName);
+    }
+
+    /**
+     * As {@link #toExcel(Iterable, Class, OutputStream)}, but compressed as specified rather than as configured (see
+     * {@link #KEY_COMPRESSION}).
+     *
+     * @throws IllegalArgumentException - if not compressed the default way, but the export engine is configured as
+     *                                  <tt>memory</tt> or <tt>streaming</tt>
+     */
+    @Programmatic
+    public <T> void toExcel(
+            final Iterable<T> domainObjects,
+            final Class<T> cls,
+            final OutputStream os,
+            final Compression compression) throws ExcelService.Exception {
+        toExcel(domainObjects.iterator(), sizeOf(domainObjects), cls, compression, os);
+    }
+
+    /**
+     * As {@link #toExcel(Iterable, Class, String)}, consuming the domain objects from an iterator.
+     */
+    @Programmatic
+    public <T> Blob toExcel(
+            final Iterator<T> domainObjects,
+            final Class<T> cls,
+            final String fileName) throws ExcelService.Exception {
+        return toBlob(domainObjects, -1, cls, compression, fileName);
+    }
+
+    /**
+     * As {@link #toExcel(Iterable, Class, OutputStream)}, consuming the domain objects from an iterator.
+     */
+    @Programmatic
+    public <T> void toExcel(
+            final Iterator<T> domainObjects,
+            final Class<T> cls,
+            final OutputStream os) throws ExcelService.Exception {
+        toExcel(domainObjects, -1, cls, compression, os);
+    }
+
+    /**
+     * Creates a Blob holding a spreadsheet of the (entity) results of the query.
+     *
+     * <p>
+     *     The query is fetched a page (see {@link #KEY_QUERY_PAGE_SIZE}) at a time, each page being a range of the
+     *     query; the query must therefore have a deterministic ordering (an <tt>ORDER BY</tt> on a unique key), else
+     *     rows may be skipped or repeated between pages.  Any range of the query itself is respected.
+     * </p>
+     *
+     * <p>
+     *     Once written, the adapters of each page's objects are removed from the persistence session, other than those
+     *     of objects already adapted when the export started (such as the target of the action).  The objects
+     *     themselves are not evicted from the object store's own (for example JDO's level 1) cache, so whether memory
+     *     use grows with the number of results depends on how that cache is configured.
+     * </p>
+     *
+     * <p>
+     *     Intended for read-only exports: the objects returned by the query should not otherwise be modified within
+     *     the current session.
+     * </p>
+     */
+    @Programmatic
+    public <T> Blob toExcel(
+            final QueryDefault<T> query,
+            final Class<T> cls,
+            final String fileName) throws ExcelService.Exception {
+        try (ExcelFileBlobConverter.BlobOutputStream os = excelFileBlobConverter.newOutputStream(0, spillManager)) {
+            toExcel(query, cls, os);
+            return os.toBlob(fileName);
+        } catch (final IOException ex) {
+            throw new ExcelService.Exception(ex);
+        }
+    }
+
+    /**
+     * As {@link #toExcel(QueryDefault, Class, String)}, but writing the spreadsheet directly to the provided stream,
+     * which is left open.
+     */
+    @Programmatic
+    public <T> void toExcel(
+            final QueryDefault<T> query,
+            final Class<T> cls,
+            final OutputStream os) throws ExcelService.Exception {
+        final PagedQueryIterator<T> domainObjects =
+                new PagedQueryIterator<>(container, query, queryPageSize, newAdapterEvictor());
+        toExcel(domainObjects, -1, cls, compression, os);
+    }
+
+    /**
+     * Removes the adapters of a page of exported objects from the persistence session, unless already adapted before
+     * the export started (and so perhaps still in use).
+     */
+    private PagedQueryIterator.Evictor newAdapterEvictor() {
+        final AdapterManagerDefault adapterManager = getPersistenceSession().getAdapterManager();
+        final Set<Object> alreadyAdapted = Sets.newIdentityHashSet();
+        for (final ObjectAdapter adapter : adapterManager) {
+            alreadyAdapted.add(adapter.getObject());
+        }
+        return new PagedQueryIterator.Evictor() {
+            @Override
+            public void evict(final List<?> page) {
+                for (final Object domainObject : page) {
+                    if (alreadyAdapted.contains(domainObject)) {
+                        continue;
+                    }
+                    final ObjectAdapter adapter = adapterManager.getAdapterFor(domainObject);
+                    if (adapter != null) {
+                        adapterManager.removeAdapter(adapter);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Writes to memory, or beyond the spill threshold to a temporary file (see {@link #KEY_SPILL_THRESHOLD}), deleted
+     * once read back into the Blob.
+     *
+     * @param numRows - as for {@link #toExcel(Iterator, int, Class, Compression, OutputStream)}
+     */
+    private <T> Blob toBlob(
+            final Iterator<T> domainObjects,
+            final int numRows,
+            final Class<T> cls,
+            final Compression compression,
+            final String fileName) {
+        try (ExcelFileBlobConverter.BlobOutputStream os =
+                     excelFileBlobConverter.newOutputStream(Math.max(numRows, 0), spillManager)) {
+            toExcel(domainObjects, numRows, cls, compression, os);
+            return os.toBlob(fileName);
+        } catch (final IOException ex) {
+            throw new ExcelService.Exception(ex);
+        }
+    }
+
+    /**
+     * @param numRows - the number of domain objects, or <tt>-1</tt> if not known in advance (in which case the
+     *                export is never written in memory)
+     */
+    private <T> void toExcel(
+            final Iterator<T> domainObjects,
+            final int numRows,
+            final Class<T> cls,
+            final Compression compression,
+            final OutputStream os) {
         try {
-            final File file = newExcelConverter().toFile(cls, domainObjects);
-            return excelFileBlobConverter.toBlob(fileName, file);
+            newExcelConverter().toOutputStream(cls, domainObjects, numRows, compression, os);
         } catch (final IOException ex) {
             throw new ExcelService.Exception(ex);
         }
     }
 
+    private static int sizeOf(final Iterable<?> iterable) {
+        return iterable instanceof Collection ? ((Collection<?>) iterable).size() : -1;
+    }
+
     /**
      * Returns a list of objects for each line in the spreadsheet, of the specified type.
      *
      * <p>
-     *     If the class is a view model then the objects will be properly instantiated (that is, using
+     *     If the class is a view model then the objects will be properly instantiated (that is, as if using
      *     {@link org.apache.isis.applib.DomainObjectContainer#newViewModelInstance(Class, String)}, with the correct
-     *     view model memento); otherwise the objects will be simple transient objects (that is, using
+     *     view model memento); otherwise the objects will be simple transient objects (that is, as if using
      *     {@link org.apache.isis.applib.DomainObjectContainer#newTransientInstance(Class)}).
      * </p>
+     *
+     * <p>
+     *     Where possible, view models are instantiated, injected with services and populated directly, without any
+     *     adapters; they can moreover be created without round-tripping their mementos (see
+     *     {@link #KEY_IMPORT_VIEW_MODELS}).
+     * </p>
+     *
+     * <p>
+     *     Large <tt>.xlsx</tt> spreadsheets (see {@link #KEY_IMPORT_ENGINE}) are read as a stream of XML events, each
+     *     row being converted as it is parsed; smaller ones, and legacy <tt>.xls</tt> spreadsheets, are read into
+     *     memory in their entirety.  Spreadsheets to be streamed are first copied to a temporary file (see
+     *     {@link #KEY_SPILL_DIRECTORY}), from which the parts of the package are inflated only as they are read.
+     * </p>
      */
     @Programmatic
     public <T> List<T> fromExcel(
@@ -123,8 +643,103 @@ public class ExcelService {
         }
     }
 
+    /**
+     * As {@link #fromExcel(org.apache.isis.applib.value.Blob, Class)}, but reading the spreadsheet from a file.
+     *
+     * <p>
+     *     When streamed, the parts of an <tt>.xlsx</tt> file are read (and inflated) from disk as they are needed,
+     *     rather than the whole file first being held in memory.
+     * </p>
+     */
+    @Programmatic
+    public <T> List<T> fromExcel(
+            final File file,
+            final Class<T> cls) throws ExcelService.Exception {
+        try {
+            return newExcelConverter().fromFile(cls, file, container);
+        } catch (final IOException | InvalidFormatException e) {
+            throw new ExcelService.Exception(e);
+        }
+    }
+
+    /**
+     * As {@link #fromExcel(java.io.File, Class)}.
+     */
+    @Programmatic
+    public <T> List<T> fromExcel(
+            final Path path,
+            final Class<T> cls) throws ExcelService.Exception {
+        return fromExcel(path.toFile(), cls);
+    }
+
+    /**
+     * As {@link #fromExcel(org.apache.isis.applib.value.Blob, Class)}, but reading the spreadsheet from the provided
+     * stream (for example, that of an upload), which is left open.
+     *
+     * <p>
+     *     Streams larger than {@link #KEY_SPILL_THRESHOLD} are first copied to a temporary file (deleted once read),
+     *     so that large spreadsheets are never held in memory in their entirety; see
+     *     {@link #fromExcel(java.io.File, Class)}.
+     * </p>
+     */
+    @Programmatic
+    public <T> List<T> fromExcel(
+            final InputStream is,
+            final Class<T> cls) throws ExcelService.Exception {
+        try (SpillManager.Spool spool = spillManager.spool(is)) {
+            final ExcelConverter converter = newExcelConverter();
+            return spool.isInMemory()
+                    ? converter.fromBytes(cls, spool.getBytes(), container)
+                    : converter.fromFile(cls, spool.getFile(), container);
+        } catch (final IOException | InvalidFormatException e) {
+            throw new ExcelService.Exception(e);
+        }
+    }
+
+    /**
+     * The number of imports and exports spilled to a temporary file so far (see {@link #KEY_SPILL_DIRECTORY}); does
+     * not include the rows flushed by the streaming export engine.
+     */
+    @Programmatic
+    public long getSpilledFiles() {
+        return spillManager.getSpilledFiles();
+    }
+
+    /**
+     * The total size of the imports and exports spilled to a temporary file (and since deleted) so far.
+     */
+    @Programmatic
+    public long getSpilledBytes() {
+        return spillManager.getSpilledBytes();
+    }
+
     private ExcelConverter newExcelConverter() {
-        return new ExcelConverter(getSpecificationLoader(), getAdapterManager(), getBookmarkService());
+        return new ExcelConverter(
+                getSpecificationLoader(), columnPlans, getAdapterManager(), getBookmarkService(), engines, spillManager,
+                exportMode, importMode, viewModelImport, getExecutor(), getWorkerExecutor(), parallelism);
+    }
+
+    /**
+     * Runs the writers of pipelined exports; created on first use.
+     */
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null && exportMode != ExportPipeline.Mode.SEQUENTIAL) {
+            executor = Executors.newCachedThreadPool(
+                    new ThreadFactoryBuilder().setNameFormat("excel-export-%d").setDaemon(true).build());
+        }
+        return executor;
+    }
+
+    /**
+     * Reads the rows of parallel exports, and decodes those of parallel imports; created on first use.
+     */
+    private synchronized ExecutorService getWorkerExecutor() {
+        if (workerExecutor == null
+                && (exportMode == ExportPipeline.Mode.PARALLEL || importMode == ExcelConverter.ImportMode.PARALLEL)) {
+            workerExecutor = Executors.newFixedThreadPool(parallelism,
+                    new ThreadFactoryBuilder().setNameFormat("excel-worker-%d").setDaemon(true).build());
+        }
+        return workerExecutor;
     }
 
 
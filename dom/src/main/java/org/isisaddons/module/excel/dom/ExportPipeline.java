@@ -0,0 +1,201 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Connects the reading of the rows of an export (which, reading domain objects, must happen on the thread holding
+ * the Isis session) with their writing to the spreadsheet.
+ *
+ * <p>
+ *     In {@link Mode#PIPELINED pipelined} mode, the rows are passed in batches through a bounded queue to a writer
+ *     running on another thread, which writes (and, finally, compresses) the spreadsheet while the next rows are
+ *     fetched and read; at most {@link #QUEUE_CAPACITY} batches are ever waiting to be written.  Should either
+ *     side fail, {@link #run(Iterator, RowWriter)} does not return until the writer has stopped, so the spreadsheet
+ *     (and its output stream) is never written to after the caller has moved on.
+ * </p>
+ */
+class ExportPipeline {
+
+    enum Mode {
+        /**
+         * Rows are read and written one after another, by the calling thread.
+         */
+        SEQUENTIAL,
+        /**
+         * Rows are read by the calling thread and written concurrently by another.
+         */
+        PIPELINED,
+        /**
+         * As {@link #PIPELINED}, with the rows of view models moreover read by a pool of threads
+         * (see {@link ParallelRowReader}).
+         */
+        PARALLEL
+    }
+
+    interface RowWriter {
+        /**
+         * @param row - the values of the row, one per column
+         */
+        void write(ExportRow row) throws IOException;
+
+        /**
+         * Called once all rows have been written.
+         */
+        void finish() throws IOException;
+    }
+
+    private static final int BATCH_SIZE = 256;
+    private static final int QUEUE_CAPACITY = 8;
+
+    /**
+     * How often the reader checks that the writer is still running, while waiting for space in the queue.
+     */
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+    /**
+     * Marks the end of the rows; compared by identity.
+     */
+    private static final List<ExportRow> END = Collections.unmodifiableList(Lists.<ExportRow>newArrayList());
+
+    private static final int WRITER_PENDING = 0;
+    private static final int WRITER_RUNNING = 1;
+    private static final int WRITER_ABANDONED = 2;
+
+    private final Mode mode;
+    private final ExecutorService executor;
+
+    ExportPipeline(final Mode mode, final ExecutorService executor) {
+        this.mode = mode;
+        this.executor = executor;
+    }
+
+    void run(final Iterator<ExportRow> rows, final RowWriter rowWriter) throws IOException {
+        if (mode == Mode.SEQUENTIAL) {
+            while (rows.hasNext()) {
+                rowWriter.write(rows.next());
+            }
+            rowWriter.finish();
+            return;
+        }
+
+        final BlockingQueue<List<ExportRow>> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        final AtomicInteger writerState = new AtomicInteger(WRITER_PENDING);
+        final CountDownLatch writerStopped = new CountDownLatch(1);
+        final Future<Void> writer = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException, InterruptedException {
+                if (!writerState.compareAndSet(WRITER_PENDING, WRITER_RUNNING)) {
+                    return null;
+                }
+                try {
+                    for (List<ExportRow> batch = queue.take(); batch != END; batch = queue.take()) {
+                        for (final ExportRow row : batch) {
+                            rowWriter.write(row);
+                        }
+                    }
+                    rowWriter.finish();
+                    return null;
+                } finally {
+                    writerStopped.countDown();
+                }
+            }
+        });
+        boolean completed = false;
+        try {
+            List<ExportRow> batch = Lists.newArrayListWithCapacity(BATCH_SIZE);
+            while (rows.hasNext()) {
+                batch.add(rows.next());
+                if (batch.size() == BATCH_SIZE) {
+                    put(queue, batch, writer);
+                    batch = Lists.newArrayListWithCapacity(BATCH_SIZE);
+                }
+            }
+            if (!batch.isEmpty()) {
+                put(queue, batch, writer);
+            }
+            put(queue, END, writer);
+            await(writer);
+            completed = true;
+        } finally {
+            if (!completed) {
+                // stop the writer (interrupting it if waiting for rows), and wait for it to have done so, unless
+                // it never started
+                writer.cancel(true);
+                queue.clear();
+                if (!writerState.compareAndSet(WRITER_PENDING, WRITER_ABANDONED)) {
+                    Uninterruptibles.awaitUninterruptibly(writerStopped);
+                }
+            }
+        }
+    }
+
+    private static void put(
+            final BlockingQueue<List<ExportRow>> queue,
+            final List<ExportRow> batch,
+            final Future<Void> writer) throws IOException {
+        try {
+            while (!queue.offer(batch, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (writer.isDone()) {
+                    // will throw the writer's exception
+                    await(writer);
+                    throw new ExcelService.Exception("Excel writer stopped unexpectedly", null);
+                }
+            }
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ExcelService.Exception(ex);
+        }
+    }
+
+    private static void await(final Future<Void> writer) throws IOException {
+        try {
+            writer.get();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ExcelService.Exception(ex);
+        } catch (final ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new ExcelService.Exception(cause);
+        }
+    }
+
+}
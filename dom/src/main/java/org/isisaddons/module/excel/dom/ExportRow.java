@@ -0,0 +1,83 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+import java.util.List;
+
+/**
+ * The values of a row of an export, one per column, as read from a domain object and then handed to the
+ * {@link ExportPipeline.RowWriter} (possibly on another thread).
+ *
+ * <p>
+ *     The values of {@link ColumnPlan.Column#isPrimitiveNumeric() primitive numeric} properties are held unboxed,
+ *     having been read through a getter typed to return a <tt>double</tt>; all other values are held as per
+ *     {@link CellMarshaller#getExportValue(org.apache.isis.core.metamodel.adapter.ObjectAdapter, ColumnPlan.Column)}.
+ * </p>
+ */
+final class ExportRow {
+
+    /**
+     * Whether any of the columns is {@link ColumnPlan.Column#isPrimitiveNumeric() primitive numeric}, in which case
+     * the rows need room for unboxed values.
+     */
+    static boolean anyPrimitiveNumeric(final List<ColumnPlan.Column> columns) {
+        for (final ColumnPlan.Column column : columns) {
+            if (column.isPrimitiveNumeric()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private final Object[] values;
+    private final double[] numericValues;
+
+    ExportRow(final int numColumns, final boolean anyPrimitiveNumeric) {
+        this.values = new Object[numColumns];
+        this.numericValues = anyPrimitiveNumeric ? new double[numColumns] : null;
+    }
+
+    /**
+     * Reads a {@link ColumnPlan.Column#isReadDirectly() simple value property} of the domain object.
+     */
+    void readDirectly(final int columnIndex, final ColumnPlan.Column column, final Object domainObject) {
+        if (column.isPrimitiveNumeric()) {
+            numericValues[columnIndex] = column.getNumeric(domainObject);
+        } else {
+            values[columnIndex] = column.get(domainObject);
+        }
+    }
+
+    /**
+     * Not for {@link ColumnPlan.Column#isPrimitiveNumeric() primitive numeric} columns.
+     */
+    Object get(final int columnIndex) {
+        return values[columnIndex];
+    }
+
+    void set(final int columnIndex, final Object value) {
+        values[columnIndex] = value;
+    }
+
+    /**
+     * Only for {@link ColumnPlan.Column#isPrimitiveNumeric() primitive numeric} columns.
+     */
+    double getNumeric(final int columnIndex) {
+        return numericValues[columnIndex];
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import com.google.common.collect.Lists;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.apache.isis.applib.services.bookmark.BookmarkService;
+
+/**
+ * Holds the entire workbook in memory, with full fidelity; the only engine able to read legacy <tt>.xls</tt> files.
+ */
+class InMemoryEngine extends WorkbookEngine {
+
+    InMemoryEngine(
+            final BookmarkService bookmarkService,
+            final CellMarshaller.BookmarkEncoding bookmarkEncoding) {
+        super(bookmarkService, bookmarkEncoding);
+    }
+
+    @Override
+    protected Workbook newWorkbook() {
+        return new XSSFWorkbook();
+    }
+
+    @Override
+    public void readSheets(
+            final InputStream is,
+            final XlsxEventReader.RowHandler rowHandler) throws IOException, InvalidFormatException {
+
+        final Workbook wb = WorkbookFactory.create(is);
+
+        final List<String> sheetNames = Lists.newArrayList();
+        for (int i = 0; i < wb.getNumberOfSheets(); i++) {
+            sheetNames.add(wb.getSheetName(i));
+        }
+        for (final int sheetIndex : ExcelConverter.sheetsToImport(sheetNames)) {
+            final Sheet sheet = wb.getSheetAt(sheetIndex);
+            rowHandler.sheet(sheet.getSheetName());
+            for (final Row row : sheet) {
+                final List<CellValue> cells = Lists.newArrayList();
+                for (final Cell cell : row) {
+                    cells.add(CellValue.of(cell));
+                }
+                rowHandler.row(row.getRowNum(), cells);
+            }
+        }
+    }
+
+    /**
+     * The entire workbook is read into memory in any case.
+     */
+    @Override
+    public void readSheets(
+            final File file,
+            final XlsxEventReader.RowHandler rowHandler) throws IOException, InvalidFormatException {
+        try (InputStream is = new BufferedInputStream(new FileInputStream(file))) {
+            readSheets(is, rowHandler);
+        }
+    }
+
+    @Override
+    public boolean isStreamed() {
+        return false;
+    }
+
+    /**
+     * The cells are read lazily from the in-memory workbook, so must be decoded by the reading thread.
+     */
+    @Override
+    public boolean isDetached() {
+        return false;
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+
+/**
+ * Writes directly as SpreadsheetML (see {@link XlsxStreamWriter}), without any POI object model, and reads as a
+ * stream of XML events (see {@link XlsxEventReader}).
+ *
+ * <p>
+ *     The cheapest engine per cell, and memory-bounded; bookmarks are always written to hidden columns.
+ * </p>
+ */
+class NativeEngine implements ExcelEngine {
+
+    private final SharedStrings.Strategy sharedStringsStrategy;
+
+    NativeEngine(final SharedStrings.Strategy sharedStringsStrategy) {
+        this.sharedStringsStrategy = sharedStringsStrategy;
+    }
+
+    @Override
+    public SheetWriter newSheetWriter(
+            final ColumnPlan plan,
+            final String sheetName,
+            final ExcelService.Compression compression,
+            final OutputStream os) throws IOException {
+        final XlsxStreamWriter writer = new XlsxStreamWriter(
+                os, compression.getLevel(), ExcelConverter.MAX_ROWS_PER_SHEET, sheetName,
+                plan.getHeaders(), plan.getBookmarkHeaders(), sharedStringsStrategy);
+        final List<ColumnPlan.Column> columns = plan.getExportColumns();
+        final String[] bookmarks = new String[columns.size()];
+        return new SheetWriter() {
+            @Override
+            public void write(final ExportRow row) throws IOException {
+                writer.startRow();
+                boolean anyBookmarks = false;
+                for (int i = 0; i < bookmarks.length; i++) {
+                    final ColumnPlan.Column column = columns.get(i);
+                    bookmarks[i] = null;
+                    if (column.isPrimitiveNumeric()) {
+                        writer.cell(i).writeNumeric(row.getNumeric(i));
+                        continue;
+                    }
+                    final Object value = row.get(i);
+                    if (value == null) {
+                        continue;
+                    }
+                    final CellCodec codec = column.getCodec();
+                    if (codec != null) {
+                        codec.write(writer.cell(i), value);
+                    } else if (value instanceof CellMarshaller.Reference) {
+                        final CellMarshaller.Reference reference = (CellMarshaller.Reference) value;
+                        writer.cell(i).writeString(reference.getTitle());
+                        bookmarks[i] = reference.getBookmark();
+                        anyBookmarks = true;
+                    } else {
+                        writer.cell(i).writeString((String) value);
+                    }
+                }
+                if (anyBookmarks) {
+                    // the bookmark columns follow all of the visible columns (in the same order)
+                    for (int i = 0; i < bookmarks.length; i++) {
+                        if (bookmarks[i] != null) {
+                            writer.cell(columns.get(i).getBookmarkColumnIndex()).writeString(bookmarks[i]);
+                        }
+                    }
+                }
+                writer.endRow();
+            }
+
+            @Override
+            public void finish() throws IOException {
+                writer.finish();
+            }
+
+            @Override
+            public void close() {
+                // the stream itself is left open
+                writer.close();
+            }
+        };
+    }
+
+    @Override
+    public void readSheets(
+            final InputStream is,
+            final XlsxEventReader.RowHandler rowHandler) throws IOException, InvalidFormatException {
+        XlsxEventReader.readSheets(is, rowHandler);
+    }
+
+    @Override
+    public void readSheets(
+            final File file,
+            final XlsxEventReader.RowHandler rowHandler) throws IOException, InvalidFormatException {
+        XlsxEventReader.readSheets(file, rowHandler);
+    }
+
+    @Override
+    public boolean isStreamed() {
+        return true;
+    }
+
+    @Override
+    public boolean isDetached() {
+        return true;
+    }
+
+}
@@ -0,0 +1,196 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.List;
+import com.google.common.collect.Lists;
+import org.apache.isis.applib.DomainObjectContainer;
+import org.apache.isis.core.metamodel.facets.object.callbacks.CreatedCallbackFacet;
+import org.apache.isis.core.metamodel.facets.object.viewmodel.ViewModelFacet;
+import org.apache.isis.core.metamodel.facets.properties.defaults.PropertyDefaultFacet;
+import org.apache.isis.core.metamodel.spec.ObjectSpecification;
+import org.apache.isis.core.metamodel.spec.feature.Contributed;
+import org.apache.isis.core.metamodel.spec.feature.ObjectAssociation;
+
+/**
+ * Instantiates the view models of a class for import, with the same outcome as
+ * {@link DomainObjectContainer#newTransientInstance(Class)} but without creating an
+ * {@link org.apache.isis.core.metamodel.adapter.ObjectAdapter} for each.
+ *
+ * <p>
+ *     Only available (see {@link #forSpec(ObjectSpecification)}) for view models that have a public no-arg
+ *     constructor, no <tt>created()</tt> callback and no property defaults, for which instantiating comes down to
+ *     calling the constructor and injecting services; entities are always instantiated by the container.  As by the
+ *     framework itself, services are injected into <tt>@Inject</tt>-annotated fields and methods, and through
+ *     <tt>inject...</tt> and <tt>set...</tt> methods (such as
+ *     {@link org.apache.isis.applib.AbstractContainedObject#setContainer(DomainObjectContainer)}), but only where
+ *     the type of the parameter resolves to a registered service; other setters are left alone.  The injection
+ *     points are found once per class, and the services to inject {@link #bind(DomainObjectContainer) looked up}
+ *     once per import.
+ * </p>
+ */
+final class ObjectFactory {
+
+    private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Object.class);
+
+    /**
+     * Returns <tt>null</tt> if the objects of the specified class cannot be instantiated this way.
+     */
+    static ObjectFactory forSpec(final ObjectSpecification objectSpec) {
+        if (objectSpec.getFacet(ViewModelFacet.class) == null) {
+            return null;
+        }
+        final Class<?> cls = objectSpec.getCorrespondingClass();
+        if (Modifier.isAbstract(cls.getModifiers()) || !Modifier.isPublic(cls.getModifiers())) {
+            return null;
+        }
+        if (objectSpec.getFacet(CreatedCallbackFacet.class) != null) {
+            return null;
+        }
+        for (final ObjectAssociation association : objectSpec.getAssociations(Contributed.EXCLUDED)) {
+            final PropertyDefaultFacet defaultFacet = association.getFacet(PropertyDefaultFacet.class);
+            if (defaultFacet != null && !defaultFacet.isNoop() && !defaultFacet.isDerived()) {
+                return null;
+            }
+        }
+        final MethodHandle constructor;
+        try {
+            constructor = MethodHandles.publicLookup()
+                    .findConstructor(cls, MethodType.methodType(void.class))
+                    .asType(CONSTRUCTOR_TYPE);
+        } catch (final NoSuchMethodException | IllegalAccessException ex) {
+            return null;
+        }
+        return new ObjectFactory(cls, constructor);
+    }
+
+    private final MethodHandle constructor;
+    private final List<Field> injectFields = Lists.newArrayList();
+    private final List<Method> injectMethods = Lists.newArrayList();
+
+    private ObjectFactory(final Class<?> cls, final MethodHandle constructor) {
+        this.constructor = constructor;
+        for (Class<?> c = cls; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (final Field field : c.getDeclaredFields()) {
+                if (field.isAnnotationPresent(javax.inject.Inject.class) && !Modifier.isStatic(field.getModifiers())) {
+                    field.setAccessible(true);
+                    injectFields.add(field);
+                }
+            }
+        }
+        for (final Method method : cls.getMethods()) {
+            final String name = method.getName();
+            if ((name.startsWith("inject") || name.startsWith("set")
+                    || method.isAnnotationPresent(javax.inject.Inject.class))
+                    && method.getParameterTypes().length == 1
+                    && !Modifier.isStatic(method.getModifiers())
+                    && isPossibleService(method.getParameterTypes()[0])) {
+                injectMethods.add(method);
+            }
+        }
+    }
+
+    private static boolean isPossibleService(final Class<?> type) {
+        return !type.isPrimitive() && !type.isArray() && !type.getName().startsWith("java.");
+    }
+
+    /**
+     * Looks up the services to inject; the (candidate) injection points whose type is not that of a service are
+     * dropped.
+     */
+    Bound bind(final DomainObjectContainer container) {
+        final List<Field> fields = Lists.newArrayList();
+        final List<Object> fieldServices = Lists.newArrayList();
+        for (final Field field : injectFields) {
+            final Object service = serviceOfType(container, field.getType());
+            if (service != null) {
+                fields.add(field);
+                fieldServices.add(service);
+            }
+        }
+        final List<Method> methods = Lists.newArrayList();
+        final List<Object> methodServices = Lists.newArrayList();
+        for (final Method method : injectMethods) {
+            final Object service = serviceOfType(container, method.getParameterTypes()[0]);
+            if (service != null) {
+                methods.add(method);
+                methodServices.add(service);
+            }
+        }
+        return new Bound(
+                constructor,
+                Collections.unmodifiableList(fields), Collections.unmodifiableList(fieldServices),
+                Collections.unmodifiableList(methods), Collections.unmodifiableList(methodServices));
+    }
+
+    private static Object serviceOfType(final DomainObjectContainer container, final Class<?> type) {
+        if (type.isAssignableFrom(DomainObjectContainer.class)) {
+            return container;
+        }
+        return container.lookupService(type);
+    }
+
+    /**
+     * Creates instances, along with their (already looked up) services.
+     */
+    static final class Bound {
+        private final MethodHandle constructor;
+        private final List<Field> fields;
+        private final List<Object> fieldServices;
+        private final List<Method> methods;
+        private final List<Object> methodServices;
+
+        private Bound(
+                final MethodHandle constructor,
+                final List<Field> fields,
+                final List<Object> fieldServices,
+                final List<Method> methods,
+                final List<Object> methodServices) {
+            this.constructor = constructor;
+            this.fields = fields;
+            this.fieldServices = fieldServices;
+            this.methods = methods;
+            this.methodServices = methodServices;
+        }
+
+        Object newInstance() {
+            final Object instance;
+            try {
+                instance = (Object) constructor.invokeExact();
+                for (int i = 0; i < fields.size(); i++) {
+                    fields.get(i).set(instance, fieldServices.get(i));
+                }
+                for (int i = 0; i < methods.size(); i++) {
+                    methods.get(i).invoke(instance, methodServices.get(i));
+                }
+            } catch (final RuntimeException | Error ex) {
+                throw ex;
+            } catch (final Throwable ex) {
+                throw new ExcelService.Exception(ex);
+            }
+            return instance;
+        }
+    }
+
+}
@@ -0,0 +1,112 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import org.apache.isis.applib.DomainObjectContainer;
+import org.apache.isis.applib.query.QueryDefault;
+
+/**
+ * Iterates over the results of a query, fetching them a page (a range of the query) at a time.
+ *
+ * <p>
+ *     Once all of the objects of a page have been consumed, they are handed to an {@link Evictor} before the next
+ *     page is fetched, so that this iterator holds only a single page of results at any one time.
+ * </p>
+ *
+ * <p>
+ *     Each page is fetched afresh, so the query must order its results deterministically (for example, by a unique
+ *     key); otherwise results may be skipped or repeated between pages.
+ * </p>
+ */
+class PagedQueryIterator<T> implements Iterator<T> {
+
+    interface Evictor {
+        void evict(List<?> page);
+    }
+
+    private final DomainObjectContainer container;
+    private final QueryDefault<T> query;
+    private final int pageSize;
+    private final Evictor evictor;
+
+    private List<T> page = Collections.emptyList();
+    private int pageStart;
+    private int indexInPage;
+    private boolean lastPage;
+
+    PagedQueryIterator(
+            final DomainObjectContainer container,
+            final QueryDefault<T> query,
+            final int pageSize,
+            final Evictor evictor) {
+        this.container = container;
+        this.query = query;
+        this.pageSize = pageSize;
+        this.evictor = evictor;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (indexInPage < page.size()) {
+            return true;
+        }
+        if (!page.isEmpty()) {
+            evictor.evict(page);
+            pageStart += page.size();
+            page = Collections.emptyList();
+            indexInPage = 0;
+        }
+        final long count = countForPage();
+        if (lastPage || count <= 0) {
+            return false;
+        }
+        page = container.allMatches(new QueryDefault<>(
+                query.getResultType(), query.getQueryName(),
+                query.getStart() + pageStart, count,
+                query.getArgumentsByParameterName()));
+        lastPage = page.size() < count;
+        return !page.isEmpty();
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.get(indexInPage++);
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * The size of the next page, respecting the range (if any) of the original query.
+     */
+    private long countForPage() {
+        if (query.getCount() > 0) {
+            return Math.min(pageSize, query.getCount() - pageStart);
+        }
+        return pageSize;
+    }
+
+}
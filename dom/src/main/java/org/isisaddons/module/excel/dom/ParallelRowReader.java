@@ -0,0 +1,187 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import com.google.common.collect.Lists;
+import org.apache.isis.core.metamodel.adapter.ObjectAdapter;
+import org.apache.isis.core.metamodel.adapter.mgr.AdapterManager;
+
+/**
+ * Reads the export values of the rows of an export (as per
+ * {@link CellMarshaller#getExportValue(ObjectAdapter, ColumnPlan.Column)}), reading chunks of rows concurrently.
+ *
+ * <p>
+ *     Only the {@link ColumnPlan.Column#isReadDirectly() simple value properties} are read by the pool, directly from
+ *     the domain objects; the remaining columns (references, and any property that can only be read through its
+ *     {@link ObjectAdapter}) need the Isis session, so are read by the calling thread once
+ *     the rest of the chunk has been read.  Chunks are returned in the order of the domain objects.
+ * </p>
+ *
+ * <p>
+ *     Only suitable for domain objects whose getters do not themselves require the Isis session; in particular, not
+ *     for (lazily loaded) entities.
+ * </p>
+ */
+class ParallelRowReader<T> implements Iterator<ExportRow> {
+
+    private static final int CHUNK_SIZE = 512;
+
+    private final Iterator<? extends T> domainObjects;
+    private final List<ColumnPlan.Column> columns;
+    private final boolean[] readByPool;
+    private final boolean anyReadByCaller;
+    private final boolean anyPrimitiveNumeric;
+    private final AdapterManager adapterManager;
+    private final CellMarshaller cellMarshaller;
+    private final ExecutorService executor;
+    private final int maxChunksInFlight;
+
+    private final Deque<Chunk<T>> chunksInFlight = new ArrayDeque<>();
+    private List<ExportRow> rows;
+    private int rowIndex;
+
+    ParallelRowReader(
+            final Iterator<? extends T> domainObjects,
+            final List<ColumnPlan.Column> columns,
+            final AdapterManager adapterManager,
+            final CellMarshaller cellMarshaller,
+            final ExecutorService executor,
+            final int parallelism) {
+        this.domainObjects = domainObjects;
+        this.columns = columns;
+        this.adapterManager = adapterManager;
+        this.cellMarshaller = cellMarshaller;
+        this.executor = executor;
+        // enough to keep the pool busy while the oldest chunk is completed
+        this.maxChunksInFlight = parallelism * 2;
+
+        this.readByPool = new boolean[columns.size()];
+        boolean anyReadByCaller = false;
+        for (int i = 0; i < readByPool.length; i++) {
+            final ColumnPlan.Column column = columns.get(i);
+            readByPool[i] = column.isReadDirectly();
+            anyReadByCaller |= !readByPool[i];
+        }
+        this.anyReadByCaller = anyReadByCaller;
+        this.anyPrimitiveNumeric = ExportRow.anyPrimitiveNumeric(columns);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (rows == null || rowIndex == rows.size()) {
+            submitChunks();
+            if (chunksInFlight.isEmpty()) {
+                return false;
+            }
+            rows = complete(chunksInFlight.removeFirst());
+            rowIndex = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public ExportRow next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return rows.get(rowIndex++);
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private void submitChunks() {
+        while (chunksInFlight.size() < maxChunksInFlight && domainObjects.hasNext()) {
+            final List<T> chunkObjects = Lists.newArrayListWithCapacity(CHUNK_SIZE);
+            while (chunkObjects.size() < CHUNK_SIZE && domainObjects.hasNext()) {
+                chunkObjects.add(domainObjects.next());
+            }
+            final Future<List<ExportRow>> chunkRows = executor.submit(new Callable<List<ExportRow>>() {
+                @Override
+                public List<ExportRow> call() {
+                    final List<ExportRow> rows = Lists.newArrayListWithCapacity(chunkObjects.size());
+                    for (final T domainObject : chunkObjects) {
+                        rows.add(readByPool(domainObject));
+                    }
+                    return rows;
+                }
+            });
+            chunksInFlight.addLast(new Chunk<>(chunkObjects, chunkRows));
+        }
+    }
+
+    private ExportRow readByPool(final T domainObject) {
+        final ExportRow row = new ExportRow(columns.size(), anyPrimitiveNumeric);
+        for (int i = 0; i < readByPool.length; i++) {
+            if (readByPool[i]) {
+                row.readDirectly(i, columns.get(i), domainObject);
+            }
+        }
+        return row;
+    }
+
+    private List<ExportRow> complete(final Chunk<T> chunk) {
+        final List<ExportRow> rows;
+        try {
+            rows = chunk.rows.get();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ExcelService.Exception(ex);
+        } catch (final ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ExcelService.Exception(cause);
+        }
+        if (!anyReadByCaller) {
+            return rows;
+        }
+        for (int rowNum = 0; rowNum < rows.size(); rowNum++) {
+            final ObjectAdapter objectAdapter = adapterManager.adapterFor(chunk.domainObjects.get(rowNum));
+            final ExportRow row = rows.get(rowNum);
+            for (int i = 0; i < readByPool.length; i++) {
+                if (!readByPool[i]) {
+                    row.set(i, cellMarshaller.getExportValue(objectAdapter, columns.get(i)));
+                }
+            }
+        }
+        return rows;
+    }
+
+    private static class Chunk<T> {
+        private final List<T> domainObjects;
+        private final Future<List<ExportRow>> rows;
+
+        Chunk(final List<T> domainObjects, final Future<List<ExportRow>> rows) {
+            this.domainObjects = domainObjects;
+            this.rows = rows;
+        }
+    }
+
+}
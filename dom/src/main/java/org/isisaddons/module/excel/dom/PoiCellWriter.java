@@ -0,0 +1,64 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+import java.util.Date;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+
+/**
+ * Writes values to a POI {@link Cell}; reused for each cell that is written.
+ */
+final class PoiCellWriter implements CellCodec.CellWriter {
+
+    private final CellStyle dateCellStyle;
+    private Cell cell;
+
+    PoiCellWriter(final CellStyle dateCellStyle) {
+        this.dateCellStyle = dateCellStyle;
+    }
+
+    PoiCellWriter on(final Cell cell) {
+        this.cell = cell;
+        return this;
+    }
+
+    @Override
+    public void writeString(final String value) {
+        cell.setCellValue(value);
+        cell.setCellType(Cell.CELL_TYPE_STRING);
+    }
+
+    @Override
+    public void writeNumeric(final double value) {
+        cell.setCellValue(value);
+        cell.setCellType(Cell.CELL_TYPE_NUMERIC);
+    }
+
+    @Override
+    public void writeBoolean(final boolean value) {
+        cell.setCellValue(value);
+        cell.setCellType(Cell.CELL_TYPE_BOOLEAN);
+    }
+
+    @Override
+    public void writeDate(final Date value) {
+        cell.setCellValue(value);
+        cell.setCellStyle(dateCellStyle);
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The values decoded from the shared strings of a sheet being imported, by slot (the property a column maps to) and
+ * {@link CellValue#getSharedStringIndex() shared string index}.
+ *
+ * <p>
+ *     The same shared string (an enum name, or the bookmark of a commonly referenced object) typically occurs in many
+ *     rows; it is only decoded into its value once, and every row then holds the same instance.  Only values that
+ *     depend on nothing but the text of the cell may be cached, and only non-<tt>null</tt> values are.
+ * </p>
+ *
+ * <p>
+ *     The values of each slot are held in an array indexed by the shared string index itself (so that no key is ever
+ *     boxed), grown as higher indexes are cached, up to {@link #MAXIMUM_INDEX}.  Safe for use by the threads decoding
+ *     the rows of a sheet in parallel: should two decode the same string at once, both values are equal in any case,
+ *     and a value cached while another thread grows the array may be lost, to be decoded again.
+ * </p>
+ */
+class SharedStringDecodeCache {
+
+    /**
+     * Bounds the memory held for each slot; the strings with higher indexes (typically those of a column with many
+     * distinct values, which gain nothing from the cache) are decoded afresh every time.
+     */
+    static final int MAXIMUM_INDEX = 1 << 14;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final AtomicReferenceArray<AtomicReferenceArray<Object>> valuesBySlot;
+
+    SharedStringDecodeCache(final int numSlots) {
+        valuesBySlot = new AtomicReferenceArray<>(numSlots);
+    }
+
+    /**
+     * The value previously decoded for the shared string, or <tt>null</tt> if none.
+     */
+    Object get(final int slot, final int sharedStringIndex) {
+        final AtomicReferenceArray<Object> values = valuesBySlot.get(slot);
+        return values != null && sharedStringIndex < values.length() ? values.get(sharedStringIndex) : null;
+    }
+
+    void put(final int slot, final int sharedStringIndex, final Object value) {
+        if (value == null || sharedStringIndex >= MAXIMUM_INDEX) {
+            return;
+        }
+        AtomicReferenceArray<Object> values = valuesBySlot.get(slot);
+        while (values == null || sharedStringIndex >= values.length()) {
+            final AtomicReferenceArray<Object> grown = grow(values, sharedStringIndex);
+            if (valuesBySlot.compareAndSet(slot, values, grown)) {
+                values = grown;
+            } else {
+                values = valuesBySlot.get(slot);
+            }
+        }
+        values.set(sharedStringIndex, value);
+    }
+
+    /**
+     * A copy of the values (if any), with room for the index.
+     */
+    private static AtomicReferenceArray<Object> grow(
+            final AtomicReferenceArray<Object> values,
+            final int sharedStringIndex) {
+        int capacity = values != null ? values.length() * 2 : INITIAL_CAPACITY;
+        while (capacity <= sharedStringIndex) {
+            capacity *= 2;
+        }
+        final AtomicReferenceArray<Object> grown = new AtomicReferenceArray<>(Math.min(capacity, MAXIMUM_INDEX));
+        if (values != null) {
+            for (int i = 0; i < values.length(); i++) {
+                grown.set(i, values.get(i));
+            }
+        }
+        return grown;
+    }
+
+}
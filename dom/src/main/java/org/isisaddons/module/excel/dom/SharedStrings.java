@@ -0,0 +1,198 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+import java.util.Arrays;
+
+/**
+ * The shared strings table of a spreadsheet written by {@link XlsxStreamWriter}, deciding for each column whether its
+ * strings are shared (written once, and referenced by index) or written inline.
+ *
+ * <p>
+ *     Columns repeating the same few values (enum names, owners, categories) are worth sharing; columns of mostly
+ *     distinct values (names, descriptions) are not, since every string would then be held in memory until the end
+ *     of the export and written twice over.  In {@link Strategy#AUTO auto} mode the first {@link #SAMPLE_SIZE}
+ *     strings of each column are shared, and the column continues to be shared only if most of them repeated.
+ * </p>
+ *
+ * <p>
+ *     The strings are indexed by an open-addressing hash table of <tt>int</tt>s (with linear probing), so that no
+ *     objects are allocated per lookup.
+ * </p>
+ */
+class SharedStrings {
+
+    enum Strategy {
+        /**
+         * Shared or inlined, per column, according to how often its strings repeat.
+         */
+        AUTO,
+        /**
+         * Always shared (up to {@link #MAX_SIZE} distinct strings).
+         */
+        SHARED,
+        /**
+         * Always inlined; no table is written.
+         */
+        INLINE
+    }
+
+    /**
+     * The number of strings of each column sampled before deciding whether to continue sharing them.
+     */
+    static final int SAMPLE_SIZE = 1000;
+
+    /**
+     * Columns of which more than this number of the sampled strings were distinct are written inline from then on.
+     */
+    private static final int MAX_DISTINCT_IN_SAMPLE = SAMPLE_SIZE / 2;
+
+    /**
+     * Bounds the table, which is held in memory until all of the sheets have been written.
+     */
+    static final int MAX_SIZE = 1 << 20;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final Strategy strategy;
+
+    private String[] strings = new String[INITIAL_CAPACITY];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private int size;
+    private long count;
+
+    /**
+     * Each slot holds the index of a string plus one, or zero if empty; at most half are ever in use.
+     */
+    private int[] slots = new int[INITIAL_CAPACITY * 2];
+
+    // per column
+    private int[] sampled = new int[0];
+    private int[] distinctInSample = new int[0];
+    private boolean[] inline = new boolean[0];
+
+    SharedStrings(final Strategy strategy) {
+        this.strategy = strategy;
+    }
+
+    /**
+     * The index of the string in the table (added if necessary), or <tt>-1</tt> if it is to be written inline.
+     */
+    int indexOf(final int columnIndex, final String value) {
+        if (strategy == Strategy.INLINE || isInline(columnIndex)) {
+            return -1;
+        }
+        final int hash = mix(value.hashCode());
+        final int mask = slots.length - 1;
+        int slot = hash & mask;
+        for (int entry = slots[slot]; entry != 0; entry = slots[slot]) {
+            final int index = entry - 1;
+            if (hashes[index] == hash && strings[index].equals(value)) {
+                sample(columnIndex, false);
+                count++;
+                return index;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (size == MAX_SIZE) {
+            return -1;
+        }
+        final int index = add(value, hash);
+        slots[slot] = index + 1;
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        sample(columnIndex, true);
+        count++;
+        return index;
+    }
+
+    private boolean isInline(final int columnIndex) {
+        if (columnIndex >= inline.length) {
+            final int length = Math.max(columnIndex + 1, inline.length * 2);
+            sampled = Arrays.copyOf(sampled, length);
+            distinctInSample = Arrays.copyOf(distinctInSample, length);
+            inline = Arrays.copyOf(inline, length);
+        }
+        return inline[columnIndex];
+    }
+
+    private void sample(final int columnIndex, final boolean distinct) {
+        if (strategy != Strategy.AUTO || sampled[columnIndex] == SAMPLE_SIZE) {
+            return;
+        }
+        sampled[columnIndex]++;
+        if (distinct) {
+            distinctInSample[columnIndex]++;
+        }
+        if (sampled[columnIndex] == SAMPLE_SIZE && distinctInSample[columnIndex] > MAX_DISTINCT_IN_SAMPLE) {
+            inline[columnIndex] = true;
+        }
+    }
+
+    private int add(final String value, final int hash) {
+        if (size == strings.length) {
+            strings = Arrays.copyOf(strings, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        strings[size] = value;
+        hashes[size] = hash;
+        return size++;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        final int mask = slots.length - 1;
+        for (int index = 0; index < size; index++) {
+            int slot = hashes[index] & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = index + 1;
+        }
+    }
+
+    /**
+     * Spreads the bits of {@link String#hashCode()}, whose low bits alone (used to pick the slot) are poorly
+     * distributed for similar strings.
+     */
+    private static int mix(final int hashCode) {
+        final int h = hashCode * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // //////////////////////////////////////
+
+    /**
+     * The number of distinct strings in the table.
+     */
+    int size() {
+        return size;
+    }
+
+    String get(final int index) {
+        return strings[index];
+    }
+
+    /**
+     * The number of cells referencing the table.
+     */
+    long getCount() {
+        return count;
+    }
+
+}
@@ -0,0 +1,258 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+/**
+ * Owns the temporary files holding imports read from a stream, and exports written to a {@link
+ * org.apache.isis.applib.value.Blob}: data is held in memory up to a threshold, and only beyond that spilled to a file
+ * in the configured directory (spreadsheets to be streamed are always copied to a file, see {@link
+ * #spoolToFile(InputStream)}).  (The temporary files in which the streaming export engine flushes its rows are
+ * created, and deleted, by POI itself, and are not managed or counted here.)
+ *
+ * <p>
+ *     Each file is deleted as soon as it is no longer needed (when its {@link Spool} is closed), and any still in use
+ *     are deleted on {@link #shutdown()}; the number of files and bytes spilled are counted.
+ * </p>
+ */
+class SpillManager {
+
+    private static final String PREFIX = "isis-excel-";
+    private static final String SUFFIX = ".tmp";
+
+    private final File directory;
+    private final int threshold;
+
+    private final Set<File> filesInUse = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+    private final AtomicLong spilledFiles = new AtomicLong();
+    private final AtomicLong spilledBytes = new AtomicLong();
+
+    /**
+     * @param directory - <tt>null</tt> for the default temporary directory
+     * @param threshold - the number of bytes held in memory before spilling to disk
+     */
+    SpillManager(final File directory, final int threshold) {
+        this.directory = directory;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Copies the (remaining) contents of the stream, which is left open.
+     */
+    Spool spool(final InputStream is) throws IOException {
+        final byte[] head = ByteStreams.toByteArray(ByteStreams.limit(is, threshold + 1L));
+        if (head.length <= threshold) {
+            return new Spool(head, null);
+        }
+        return spoolToFile(head, is);
+    }
+
+    /**
+     * As {@link #spool(InputStream)}, but always copying to a file, however small the stream; for spreadsheets that
+     * are to be read from disk.
+     */
+    Spool spoolToFile(final InputStream is) throws IOException {
+        return spoolToFile(new byte[0], is);
+    }
+
+    /**
+     * A stream held in memory up to the threshold, and spilled to a file beyond it; for exports that are handed over
+     * as a whole once written.
+     */
+    SpillOutputStream newOutputStream(final int initialSize) {
+        return new SpillOutputStream(Math.min(initialSize, threshold));
+    }
+
+    private Spool spoolToFile(final byte[] head, final InputStream is) throws IOException {
+        final File file = createFile();
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(file))) {
+            os.write(head);
+            ByteStreams.copy(is, os);
+        } catch (final IOException | RuntimeException ex) {
+            delete(file);
+            throw ex;
+        }
+        return new Spool(null, file);
+    }
+
+    private File createFile() throws IOException {
+        final File file = File.createTempFile(PREFIX, SUFFIX, directory);
+        filesInUse.add(file);
+        spilledFiles.incrementAndGet();
+        return file;
+    }
+
+    private void delete(final File file) {
+        if (filesInUse.remove(file)) {
+            spilledBytes.addAndGet(file.length());
+            file.delete();
+        }
+    }
+
+    /**
+     * Deletes any files still in use.
+     */
+    void shutdown() {
+        for (final File file : filesInUse) {
+            delete(file);
+        }
+    }
+
+    long getSpilledFiles() {
+        return spilledFiles.get();
+    }
+
+    /**
+     * Counted as each file is deleted.
+     */
+    long getSpilledBytes() {
+        return spilledBytes.get();
+    }
+
+    // //////////////////////////////////////
+
+    /**
+     * The contents of a stream, either in memory or in a file (deleted when closed).
+     */
+    class Spool implements Closeable {
+        private final byte[] bytes;
+        private final File file;
+
+        private Spool(final byte[] bytes, final File file) {
+            this.bytes = bytes;
+            this.file = file;
+        }
+
+        boolean isInMemory() {
+            return bytes != null;
+        }
+
+        byte[] getBytes() {
+            return bytes;
+        }
+
+        File getFile() {
+            return file;
+        }
+
+        @Override
+        public void close() {
+            if (file != null) {
+                delete(file);
+            }
+        }
+    }
+
+    /**
+     * Written in memory until the threshold would be exceeded, and then (the bytes written so far included) to a file,
+     * deleted when closed.
+     */
+    class SpillOutputStream extends OutputStream {
+        private byte[] buf;
+        private int count;
+        private File file;
+        private OutputStream out;
+
+        private SpillOutputStream(final int initialSize) {
+            buf = new byte[initialSize];
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            reserve(1);
+            if (out != null) {
+                out.write(b);
+            } else {
+                buf[count++] = (byte) b;
+            }
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            reserve(len);
+            if (out != null) {
+                out.write(b, off, len);
+            } else {
+                System.arraycopy(b, off, buf, count, len);
+                count += len;
+            }
+        }
+
+        /**
+         * Makes room for another <tt>len</tt> bytes, growing the buffer (no further than the threshold) or else
+         * spilling to a file.
+         */
+        private void reserve(final int len) throws IOException {
+            if (out != null) {
+                return;
+            }
+            final long required = (long) count + len;
+            if (required > threshold) {
+                file = createFile();
+                out = new BufferedOutputStream(new FileOutputStream(file));
+                out.write(buf, 0, count);
+                buf = null;
+            } else if (required > buf.length) {
+                buf = Arrays.copyOf(buf, (int) Math.min(Math.max(2L * buf.length, required), threshold));
+            }
+        }
+
+        boolean isInMemory() {
+            return out == null;
+        }
+
+        /**
+         * The bytes written, as an array of exactly their size; if spilled, read back from the file.
+         */
+        byte[] toByteArray() throws IOException {
+            if (out == null) {
+                return count == buf.length ? buf : Arrays.copyOf(buf, count);
+            }
+            out.flush();
+            return Files.toByteArray(file);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (file == null) {
+                return;
+            }
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } finally {
+                delete(file);
+            }
+        }
+    }
+
+}
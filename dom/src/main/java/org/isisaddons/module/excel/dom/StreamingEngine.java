@@ -0,0 +1,92 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.isis.applib.services.bookmark.BookmarkService;
+
+/**
+ * Writes using a {@link SXSSFWorkbook}, which keeps only a window of rows in memory and flushes the rest to a
+ * temporary file, and reads <tt>.xlsx</tt> files as a stream of XML events (see {@link XlsxEventReader}); peak heap
+ * is then bounded by the window size rather than by the number of rows (on import, provided that the file is read from
+ * disk).
+ *
+ * <p>
+ *     The bookmarks of references are always written to hidden columns: SXSSF keeps every cell comment (along with
+ *     its anchor and drawing shape) in memory until the workbook is written, which would undo that bound.
+ * </p>
+ */
+class StreamingEngine extends WorkbookEngine {
+
+    private final int windowSize;
+    private final boolean compressTempFiles;
+
+    /**
+     * @param compressTempFiles - whether the flushed rows are gzipped, trading CPU for (typically much) less disk
+     */
+    StreamingEngine(
+            final BookmarkService bookmarkService,
+            final int windowSize,
+            final boolean compressTempFiles) {
+        super(bookmarkService, CellMarshaller.BookmarkEncoding.COLUMNS);
+        this.windowSize = windowSize;
+        this.compressTempFiles = compressTempFiles;
+    }
+
+    @Override
+    protected Workbook newWorkbook() {
+        final SXSSFWorkbook wb = new SXSSFWorkbook(windowSize);
+        wb.setCompressTempFiles(compressTempFiles);
+        return wb;
+    }
+
+    @Override
+    protected void dispose(final Workbook wb) {
+        // deletes the temporary files that back the flushed rows
+        ((SXSSFWorkbook) wb).dispose();
+    }
+
+    @Override
+    public void readSheets(
+            final InputStream is,
+            final XlsxEventReader.RowHandler rowHandler) throws IOException, InvalidFormatException {
+        XlsxEventReader.readSheets(is, rowHandler);
+    }
+
+    @Override
+    public void readSheets(
+            final File file,
+            final XlsxEventReader.RowHandler rowHandler) throws IOException, InvalidFormatException {
+        XlsxEventReader.readSheets(file, rowHandler);
+    }
+
+    @Override
+    public boolean isStreamed() {
+        return true;
+    }
+
+    @Override
+    public boolean isDetached() {
+        return true;
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.CreationHelper;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.isis.applib.services.bookmark.BookmarkService;
+
+/**
+ * Writes spreadsheets through POI's workbook model, as either the {@link InMemoryEngine in-memory} or the
+ * {@link StreamingEngine streaming} implementation of the workbook.
+ *
+ * <p>
+ *     POI always deflates at the default level, so these engines only write
+ *     {@link ExcelService.Compression#DEFAULT default} compression; {@link EngineSelector} hands exports compressed
+ *     any other way to the {@link NativeEngine}.
+ * </p>
+ */
+abstract class WorkbookEngine implements ExcelEngine {
+
+    /**
+     * Creates the detail rows, continuing onto a new sheet (named as per
+     * {@link ExcelConverter#sheetName(String, int)}, and with its own header row) whenever a sheet reaches
+     * the row limit (normally Excel's).
+     */
+    static class RowFactory {
+        private final Workbook wb;
+        private final int maxRowsPerSheet;
+        private final String sheetName;
+        private final List<String> headers;
+        private final List<String> hiddenHeaders;
+
+        private Sheet sheet;
+        private int sheetNum;
+        private int rowNum;
+
+        /**
+         * @param maxRowsPerSheet - including the header row
+         */
+        RowFactory(
+                final Workbook wb,
+                final int maxRowsPerSheet,
+                final String sheetName,
+                final List<String> headers,
+                final List<String> hiddenHeaders) {
+            this.wb = wb;
+            this.maxRowsPerSheet = maxRowsPerSheet;
+            this.sheetName = sheetName;
+            this.headers = headers;
+            this.hiddenHeaders = hiddenHeaders;
+            newSheet();
+        }
+
+        public Row newRow() {
+            if (rowNum == maxRowsPerSheet) {
+                newSheet();
+            }
+            return sheet.createRow(rowNum++);
+        }
+
+        private void newSheet() {
+            sheetNum++;
+            sheet = wb.createSheet(ExcelConverter.sheetName(sheetName, sheetNum));
+            rowNum = 0;
+
+            final Row headerRow = sheet.createRow(rowNum++);
+            int i = 0;
+            for (final String header : headers) {
+                final Cell cell = headerRow.createCell(i++);
+                cell.setCellValue(header);
+            }
+            for (final String hiddenHeader : hiddenHeaders) {
+                sheet.setColumnHidden(i, true);
+                final Cell cell = headerRow.createCell(i++);
+                cell.setCellValue(hiddenHeader);
+            }
+
+            // freeze panes
+            sheet.createFreezePane(0, 1);
+        }
+    }
+
+    // //////////////////////////////////////
+
+    private final BookmarkService bookmarkService;
+    private final CellMarshaller.BookmarkEncoding bookmarkEncoding;
+
+    WorkbookEngine(
+            final BookmarkService bookmarkService,
+            final CellMarshaller.BookmarkEncoding bookmarkEncoding) {
+        this.bookmarkService = bookmarkService;
+        this.bookmarkEncoding = bookmarkEncoding;
+    }
+
+    @Override
+    public SheetWriter newSheetWriter(
+            final ColumnPlan plan,
+            final String sheetName,
+            final ExcelService.Compression compression,
+            final OutputStream os) {
+        if (compression != ExcelService.Compression.DEFAULT) {
+            throw new IllegalArgumentException("POI only writes the default compression, not " + compression);
+        }
+        final Workbook wb = newWorkbook();
+        final List<String> hiddenHeaders =
+                bookmarkEncoding == CellMarshaller.BookmarkEncoding.COLUMNS
+                        ? plan.getBookmarkHeaders()
+                        : Collections.<String>emptyList();
+        final RowFactory rowFactory = new RowFactory(
+                wb, ExcelConverter.MAX_ROWS_PER_SHEET, sheetName, plan.getHeaders(), hiddenHeaders);
+        final CellMarshaller cellMarshaller = newCellMarshaller(wb);
+        final List<ColumnPlan.Column> columns = plan.getExportColumns();
+        return new SheetWriter() {
+            @Override
+            public void write(final ExportRow row) {
+                final Row detailRow = rowFactory.newRow();
+                int i = 0;
+                for (final ColumnPlan.Column column : columns) {
+                    final Cell cell = detailRow.createCell(i);
+                    if (column.isPrimitiveNumeric()) {
+                        cellMarshaller.setNumericCellValue(row.getNumeric(i++), cell);
+                    } else {
+                        cellMarshaller.setCellValue(row.get(i++), column, cell);
+                    }
+                }
+            }
+
+            @Override
+            public void finish() throws IOException {
+                wb.write(os);
+            }
+
+            @Override
+            public void close() {
+                dispose(wb);
+            }
+        };
+    }
+
+    protected abstract Workbook newWorkbook();
+
+    /**
+     * Releases any resources held by the workbook (once written, or abandoned).
+     */
+    protected void dispose(final Workbook wb) {
+    }
+
+    @SuppressWarnings("unused")
+    private void autoSize(final Sheet sh, final int numProps) {
+        for (int prop = 0; prop < numProps; prop++) {
+            sh.autoSizeColumn(prop);
+        }
+    }
+
+    // //////////////////////////////////////
+
+    protected CellMarshaller newCellMarshaller(final Workbook wb) {
+        final CellStyle dateCellStyle = createDateFormatCellStyle(wb);
+        final CellMarshaller cellMarshaller = new CellMarshaller(bookmarkService, dateCellStyle, bookmarkEncoding);
+        return cellMarshaller;
+    }
+
+    protected CellStyle createDateFormatCellStyle(final Workbook wb) {
+        final CreationHelper createHelper = wb.getCreationHelper();
+        final short dateFormat = createHelper.createDataFormat().getFormat("yyyy-mm-dd");
+        final CellStyle dateCellStyle = wb.createCellStyle();
+        dateCellStyle.setDataFormat(dateFormat);
+        return dateCellStyle;
+    }
+
+}
@@ -0,0 +1,392 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import com.google.common.collect.Lists;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.openxml4j.opc.PackageRelationship;
+import org.apache.poi.openxml4j.opc.PackageRelationshipCollection;
+import org.apache.poi.openxml4j.opc.PackageRelationshipTypes;
+import org.apache.poi.openxml4j.opc.PackagingURIHelper;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Comment;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.model.CommentsTable;
+import org.apache.poi.xssf.usermodel.XSSFRelation;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Reads the rows of an <tt>.xlsx</tt> package as SAX events, without building the in-memory model of the sheets.
+ *
+ * <p>
+ *     Each row is handed to a {@link RowHandler} as soon as it has been parsed, so memory use is independent of the
+ *     number of rows in the sheet.
+ * </p>
+ */
+class XlsxEventReader {
+
+    interface RowHandler {
+        /**
+         * Called before the rows of each sheet that is read.
+         */
+        void sheet(String sheetName);
+
+        /**
+         * @param rowNum - zero-based, as per {@link org.apache.poi.ss.usermodel.Row#getRowNum()}
+         * @param cells - the non-empty cells of the row, in column order
+         */
+        void row(int rowNum, List<CellValue> cells);
+    }
+
+    private static final String NS_MAIN = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+    private static final String NS_RELATIONSHIPS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+
+    /**
+     * Decodes Excel's <tt>_xHHHH_</tt> notation for characters (such as control characters) that cannot otherwise
+     * appear in XML, as POI does for the cells of its in-memory workbook.
+     */
+    static String decodeEscapes(final String str) {
+        if (str == null || str.indexOf("_x") == -1) {
+            return str;
+        }
+        final StringBuilder buf = new StringBuilder(str.length());
+        for (int i = 0; i < str.length(); ) {
+            if (isEscapeAt(str, i)) {
+                buf.append((char) Integer.parseInt(str.substring(i + 2, i + 6), 16));
+                i += 7;
+            } else {
+                buf.append(str.charAt(i++));
+            }
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Whether an escaped character, <tt>_xHHHH_</tt>, starts at the specified index of the string.
+     */
+    static boolean isEscapeAt(final String str, final int index) {
+        if (index + 7 > str.length() || str.charAt(index) != '_' || str.charAt(index + 1) != 'x'
+                || str.charAt(index + 6) != '_') {
+            return false;
+        }
+        for (int i = index + 2; i < index + 6; i++) {
+            final char ch = str.charAt(i);
+            if (!(ch >= '0' && ch <= '9' || ch >= 'A' && ch <= 'F' || ch >= 'a' && ch <= 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private final OPCPackage pkg;
+
+    XlsxEventReader(final OPCPackage pkg) {
+        this.pkg = pkg;
+    }
+
+    /**
+     * Opens the package read from the stream, {@link #readSheets(RowHandler) reads its sheets} and then discards it.
+     *
+     * <p>
+     *     POI inflates every part of a package opened from a stream into memory, so only the sheets' object model
+     *     (not the sheets themselves) is avoided; large packages should be read from a
+     *     {@link #readSheets(File, RowHandler) file}.
+     * </p>
+     */
+    static void readSheets(final InputStream is, final RowHandler rowHandler) throws IOException, InvalidFormatException {
+        final OPCPackage pkg = OPCPackage.open(is);
+        try {
+            new XlsxEventReader(pkg).readSheets(rowHandler);
+        } finally {
+            // discard rather than save
+            pkg.revert();
+        }
+    }
+
+    /**
+     * As {@link #readSheets(InputStream, RowHandler)}, but reading the package's parts straight from the file (as a
+     * random-access zip) rather than first inflating them all into memory.
+     */
+    static void readSheets(final File file, final RowHandler rowHandler) throws IOException, InvalidFormatException {
+        final OPCPackage pkg = OPCPackage.open(file.getPath(), PackageAccess.READ);
+        try {
+            new XlsxEventReader(pkg).readSheets(rowHandler);
+        } finally {
+            // discard rather than save
+            pkg.revert();
+        }
+    }
+
+    /**
+     * Reads the rows of the first sheet of the workbook, followed by those of its continuation sheets (if any).
+     *
+     * @see ExcelConverter#sheetsToImport(java.util.List)
+     */
+    void readSheets(final RowHandler rowHandler) throws IOException, InvalidFormatException {
+        try {
+            final PackagePart workbookPart = workbookPart();
+            final WorkbookHandler workbookHandler = new WorkbookHandler();
+            parse(workbookPart, workbookHandler);
+            final List<Integer> sheetIndices = ExcelConverter.sheetsToImport(workbookHandler.sheetNames);
+            if (sheetIndices.isEmpty()) {
+                return;
+            }
+
+            final ReadOnlySharedStringsTable sharedStrings = new ReadOnlySharedStringsTable(pkg);
+            for (final int sheetIndex : sheetIndices) {
+                final PackagePart sheetPart = relatedPart(workbookPart, workbookHandler.sheetRelIds.get(sheetIndex));
+                final CommentsTable comments = commentsFor(sheetPart);
+
+                rowHandler.sheet(workbookHandler.sheetNames.get(sheetIndex));
+                parse(sheetPart, new SheetHandler(sharedStrings, comments, workbookHandler.date1904, rowHandler));
+            }
+        } catch (final SAXException | ParserConfigurationException ex) {
+            throw new ExcelService.Exception(ex);
+        }
+    }
+
+    private PackagePart workbookPart() throws InvalidFormatException {
+        final PackageRelationship coreDocRel =
+                pkg.getRelationshipsByType(PackageRelationshipTypes.CORE_DOCUMENT).getRelationship(0);
+        return pkg.getPart(coreDocRel);
+    }
+
+    private PackagePart relatedPart(final PackagePart sourcePart, final String relId) throws InvalidFormatException {
+        final PackageRelationship rel = sourcePart.getRelationship(relId);
+        return pkg.getPart(PackagingURIHelper.createPartName(rel.getTargetURI()));
+    }
+
+    private CommentsTable commentsFor(final PackagePart sheetPart) throws InvalidFormatException, IOException {
+        final PackageRelationshipCollection commentsRels =
+                sheetPart.getRelationshipsByType(XSSFRelation.SHEET_COMMENTS.getRelation());
+        for (final PackageRelationship commentsRel : commentsRels) {
+            final PackagePart commentsPart = pkg.getPart(PackagingURIHelper.createPartName(commentsRel.getTargetURI()));
+            return new CommentsTable(commentsPart, commentsRel);
+        }
+        return null;
+    }
+
+    /**
+     * The parts are uploaded by users, so are parsed without any DTD or external entities (guarding against XXE and
+     * entity expansion attacks); Excel never writes either.
+     */
+    private static void parse(final PackagePart part, final DefaultHandler handler)
+            throws IOException, SAXException, ParserConfigurationException {
+        final SAXParserFactory parserFactory = SAXParserFactory.newInstance();
+        parserFactory.setNamespaceAware(true);
+        parserFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        parserFactory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        parserFactory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+        parserFactory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+        final XMLReader xmlReader = parserFactory.newSAXParser().getXMLReader();
+        xmlReader.setContentHandler(handler);
+        try (InputStream is = part.getInputStream()) {
+            xmlReader.parse(new InputSource(is));
+        }
+    }
+
+    // //////////////////////////////////////
+
+    /**
+     * Collects the names and relationship ids of the sheets (in workbook order), and the date windowing in use.
+     */
+    private static class WorkbookHandler extends DefaultHandler {
+
+        private final List<String> sheetNames = Lists.newArrayList();
+        private final List<String> sheetRelIds = Lists.newArrayList();
+        private boolean date1904;
+
+        @Override
+        public void startElement(final String uri, final String localName, final String qName, final Attributes attributes) {
+            if (!NS_MAIN.equals(uri)) {
+                return;
+            }
+            if ("sheet".equals(localName)) {
+                sheetNames.add(attributes.getValue("name"));
+                sheetRelIds.add(attributes.getValue(NS_RELATIONSHIPS, "id"));
+            } else if ("workbookPr".equals(localName)) {
+                final String date1904Attr = attributes.getValue("date1904");
+                date1904 = "1".equals(date1904Attr) || "true".equals(date1904Attr);
+            }
+        }
+    }
+
+    /**
+     * Converts the <tt>&lt;row&gt;</tt> and <tt>&lt;c&gt;</tt> elements of a worksheet into {@link CellValue}s.
+     */
+    private static class SheetHandler extends DefaultHandler {
+
+        private final ReadOnlySharedStringsTable sharedStrings;
+        private final CommentsTable comments;
+        private final boolean date1904;
+        private final RowHandler rowHandler;
+
+        private final StringBuilder text = new StringBuilder();
+        private boolean collectText;
+
+        private int rowNum = -1;
+        private List<CellValue> cells;
+
+        private String cellRef;
+        private String cellTypeAttr;
+        private int columnIndex;
+        private boolean formula;
+
+        SheetHandler(
+                final ReadOnlySharedStringsTable sharedStrings,
+                final CommentsTable comments,
+                final boolean date1904,
+                final RowHandler rowHandler) {
+            this.sharedStrings = sharedStrings;
+            this.comments = comments;
+            this.date1904 = date1904;
+            this.rowHandler = rowHandler;
+        }
+
+        @Override
+        public void startElement(final String uri, final String localName, final String qName, final Attributes attributes) {
+            if (!NS_MAIN.equals(uri)) {
+                return;
+            }
+            switch (localName) {
+                case "row":
+                    final String rowAttr = attributes.getValue("r");
+                    rowNum = rowAttr != null ? Integer.parseInt(rowAttr) - 1 : rowNum + 1;
+                    cells = Lists.newArrayList();
+                    columnIndex = -1;
+                    break;
+                case "c":
+                    cellRef = attributes.getValue("r");
+                    cellTypeAttr = attributes.getValue("t");
+                    columnIndex = cellRef != null ? columnIndexOf(cellRef) : columnIndex + 1;
+                    formula = false;
+                    text.setLength(0);
+                    break;
+                case "f":
+                    formula = true;
+                    break;
+                case "v":
+                case "t":
+                    collectText = true;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void characters(final char[] ch, final int start, final int length) {
+            if (collectText) {
+                text.append(ch, start, length);
+            }
+        }
+
+        @Override
+        public void endElement(final String uri, final String localName, final String qName) {
+            if (!NS_MAIN.equals(uri)) {
+                return;
+            }
+            switch (localName) {
+                case "v":
+                case "t":
+                    collectText = false;
+                    break;
+                case "c":
+                    final CellValue cellValue = newCellValue();
+                    if (comments != null && cellRef != null) {
+                        cellValue.setComment(commentText(cellRef));
+                    }
+                    cells.add(cellValue);
+                    break;
+                case "row":
+                    rowHandler.row(rowNum, cells);
+                    cells = null;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private CellValue newCellValue() {
+            final String value = text.toString();
+            final int cellType = formula ? Cell.CELL_TYPE_FORMULA : -1;
+            if (cellTypeAttr == null || "n".equals(cellTypeAttr)) {
+                if (value.isEmpty()) {
+                    return CellValue.blank(columnIndex);
+                }
+                return CellValue.ofNumeric(
+                        columnIndex, formula ? cellType : Cell.CELL_TYPE_NUMERIC, Double.parseDouble(value), date1904);
+            }
+            switch (cellTypeAttr) {
+                case "s":
+                    if (value.isEmpty()) {
+                        return CellValue.blank(columnIndex);
+                    }
+                    final int sharedStringIndex = Integer.parseInt(value);
+                    return CellValue.ofSharedString(
+                            columnIndex, sharedStringIndex, decodeEscapes(sharedStrings.getEntryAt(sharedStringIndex)));
+                case "inlineStr":
+                    return CellValue.ofString(columnIndex, Cell.CELL_TYPE_STRING, decodeEscapes(value));
+                case "str":
+                    return CellValue.ofString(
+                            columnIndex, formula ? cellType : Cell.CELL_TYPE_STRING, decodeEscapes(value));
+                case "b":
+                    return CellValue.ofBoolean(columnIndex, "1".equals(value) || "true".equals(value));
+                default:
+                    return CellValue.error(columnIndex);
+            }
+        }
+
+        private String commentText(final String ref) {
+            final Comment comment = comments.findCellComment(ref);
+            if (comment == null || comment.getString() == null) {
+                return null;
+            }
+            return comment.getString().getString();
+        }
+
+        /**
+         * Converts the column letters of a cell reference such as <tt>AB12</tt> into a zero-based index.
+         */
+        private static int columnIndexOf(final String cellRef) {
+            int columnIndex = 0;
+            for (int i = 0; i < cellRef.length(); i++) {
+                final char ch = cellRef.charAt(i);
+                if (ch < 'A' || ch > 'Z') {
+                    break;
+                }
+                columnIndex = columnIndex * 26 + (ch - 'A' + 1);
+            }
+            return columnIndex - 1;
+        }
+    }
+
+}
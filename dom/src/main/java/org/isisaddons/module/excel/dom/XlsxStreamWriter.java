@@ -0,0 +1,514 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import com.google.common.collect.Lists;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.util.CellReference;
+
+/**
+ * Writes a spreadsheet of a single table (a header row followed by rows of typed cells) directly as SpreadsheetML,
+ * without building any POI (or XMLBeans) object model.
+ *
+ * <p>
+ *     The XML of each sheet is formatted into a reusable character buffer and streamed straight into the zip;
+ *     nothing is retained per row.  As per {@link WorkbookEngine.RowFactory}, rows beyond Excel's limit continue onto
+ *     further sheets, each with its own header row.  Bookmark columns (if any) are hidden.
+ * </p>
+ *
+ * <p>
+ *     Usage: for each row, {@link #startRow()}, then {@link #cell(int)} for each non-empty cell (in column order),
+ *     then {@link #endRow()}; finally {@link #finish()}.  Whether or not finished, the writer must then be
+ *     {@link #close() closed}, to release the native memory of its deflater.
+ * </p>
+ */
+class XlsxStreamWriter implements CellCodec.CellWriter {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String NS_MAIN = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+    private static final String NS_RELATIONSHIPS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+    private static final String XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n";
+
+    /**
+     * The index (into <tt>cellXfs</tt> of the styles part) of the date style.
+     */
+    private static final int DATE_STYLE = 1;
+
+    /**
+     * Batches the (small) writes of the deflater to the underlying stream.
+     */
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final ZipStream zos;
+    private final XmlBuffer xml;
+    private final int maxRowsPerSheet;
+    private final String sheetName;
+    private final List<String> headers;
+    private final List<String> hiddenHeaders;
+    private final List<String> sheetNames = Lists.newArrayList();
+    private final SharedStrings sharedStrings;
+
+    private final List<String> columnNames = Lists.newArrayList();
+
+    private int rowNum;
+    private int columnIndex;
+    private boolean headerRow;
+
+    /**
+     * @param os - left open
+     * @param compressionLevel - as per {@link java.util.zip.Deflater}
+     */
+    XlsxStreamWriter(
+            final OutputStream os,
+            final int compressionLevel,
+            final int maxRowsPerSheet,
+            final String sheetName,
+            final List<String> headers,
+            final List<String> hiddenHeaders,
+            final SharedStrings.Strategy sharedStringsStrategy) throws IOException {
+        this.zos = new ZipStream(new BufferedOutputStream(os, BUFFER_SIZE));
+        this.zos.setLevel(compressionLevel);
+        this.xml = new XmlBuffer(new OutputStreamWriter(zos, UTF_8));
+        this.maxRowsPerSheet = maxRowsPerSheet;
+        this.sheetName = sheetName;
+        this.headers = headers;
+        this.hiddenHeaders = hiddenHeaders;
+        this.sharedStrings = new SharedStrings(sharedStringsStrategy);
+        try {
+            startSheet();
+        } catch (final IOException | RuntimeException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    // //////////////////////////////////////
+
+    void startRow() throws IOException {
+        if (rowNum == maxRowsPerSheet) {
+            endSheet();
+            startSheet();
+        }
+        rowNum++;
+        xml.append("<row r=\"").append(rowNum).append("\">");
+    }
+
+    /**
+     * Positions the writer at the cell of the current row with the specified (zero-based) column index, to which
+     * exactly one value is then written.
+     */
+    CellCodec.CellWriter cell(final int columnIndex) {
+        this.columnIndex = columnIndex;
+        return this;
+    }
+
+    void endRow() throws IOException {
+        xml.append("</row>");
+    }
+
+    /**
+     * Writes the remaining parts of the package, and finishes (but does not close) the underlying stream.
+     */
+    void finish() throws IOException {
+        endSheet();
+        writeWorkbookParts();
+        xml.flush();
+        zos.finish();
+        zos.flush();
+    }
+
+    /**
+     * Releases the deflater, whether or not {@link #finish() finished}; the underlying stream is left open (and, if
+     * not finished, holds an incomplete package).
+     */
+    void close() {
+        zos.end();
+    }
+
+    // //////////////////////////////////////
+
+    /**
+     * A <tt>null</tt> value (such as the title of a reference) is written as a blank cell, as by POI.
+     */
+    @Override
+    public void writeString(final String value) {
+        if (value == null) {
+            startCell().append("/>");
+            return;
+        }
+        // the headers are written inline, so as not to skew the sampling of each column's strings
+        final int index = headerRow ? -1 : sharedStrings.indexOf(columnIndex, value);
+        if (index != -1) {
+            startCell().append(" t=\"s\"><v>").append(index).append("</v></c>");
+            return;
+        }
+        startCell().append(" t=\"inlineStr\"><is>");
+        appendText(value);
+        xml.append("</is></c>");
+    }
+
+    private void appendText(final String value) {
+        xml.append("<t");
+        if (!value.isEmpty()
+                && (Character.isWhitespace(value.charAt(0)) || Character.isWhitespace(value.charAt(value.length() - 1)))) {
+            xml.append(" xml:space=\"preserve\"");
+        }
+        xml.append('>').appendEscapedText(value).append("</t>");
+    }
+
+    @Override
+    public void writeNumeric(final double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            // not representable; leave blank
+            return;
+        }
+        startCell().append("><v>").append(value).append("</v></c>");
+    }
+
+    @Override
+    public void writeBoolean(final boolean value) {
+        startCell().append(" t=\"b\"><v>").append(value ? '1' : '0').append("</v></c>");
+    }
+
+    @Override
+    public void writeDate(final Date value) {
+        final double excelDate = DateUtil.getExcelDate(value);
+        if (excelDate < 0) {
+            // before 1900; leave blank
+            return;
+        }
+        startCell().append(" s=\"").append(DATE_STYLE).append("\"><v>").append(excelDate).append("</v></c>");
+    }
+
+    private XmlBuffer startCell() {
+        return xml.append("<c r=\"").append(columnName(columnIndex)).append(rowNum).append('"');
+    }
+
+    private String columnName(final int columnIndex) {
+        while (columnNames.size() <= columnIndex) {
+            columnNames.add(CellReference.convertNumToColString(columnNames.size()));
+        }
+        return columnNames.get(columnIndex);
+    }
+
+    // //////////////////////////////////////
+
+    private void startSheet() throws IOException {
+        final int sheetNum = sheetNames.size() + 1;
+        sheetNames.add(ExcelConverter.sheetName(sheetName, sheetNum));
+        zos.putNextEntry("xl/worksheets/sheet" + sheetNum + ".xml");
+        rowNum = 0;
+
+        xml.append(XML_DECLARATION)
+           .append("<worksheet xmlns=\"").append(NS_MAIN).append("\" xmlns:r=\"").append(NS_RELATIONSHIPS).append("\">")
+           // freeze panes
+           .append("<sheetViews><sheetView workbookViewId=\"0\">")
+           .append("<pane ySplit=\"1\" topLeftCell=\"A2\" activePane=\"bottomLeft\" state=\"frozen\"/>")
+           .append("<selection pane=\"bottomLeft\"/>")
+           .append("</sheetView></sheetViews>")
+           .append("<sheetFormatPr defaultRowHeight=\"15\"/>");
+        if (!hiddenHeaders.isEmpty()) {
+            xml.append("<cols><col min=\"").append(headers.size() + 1)
+               .append("\" max=\"").append(headers.size() + hiddenHeaders.size())
+               .append("\" width=\"0\" hidden=\"1\" customWidth=\"1\"/></cols>");
+        }
+        xml.append("<sheetData>");
+
+        startRow();
+        headerRow = true;
+        int i = 0;
+        for (final String header : headers) {
+            cell(i++).writeString(header);
+        }
+        for (final String hiddenHeader : hiddenHeaders) {
+            cell(i++).writeString(hiddenHeader);
+        }
+        headerRow = false;
+        endRow();
+    }
+
+    private void endSheet() throws IOException {
+        xml.append("</sheetData></worksheet>");
+        xml.flush();
+        zos.closeEntry();
+    }
+
+    private void writeWorkbookParts() throws IOException {
+        final int numSheets = sheetNames.size();
+        final boolean anySharedStrings = sharedStrings.size() > 0;
+
+        if (anySharedStrings) {
+            zos.putNextEntry("xl/sharedStrings.xml");
+            xml.append(XML_DECLARATION)
+               .append("<sst xmlns=\"").append(NS_MAIN)
+               .append("\" count=\"").append(Long.toString(sharedStrings.getCount()))
+               .append("\" uniqueCount=\"").append(sharedStrings.size()).append("\">");
+            for (int index = 0; index < sharedStrings.size(); index++) {
+                xml.append("<si>");
+                appendText(sharedStrings.get(index));
+                xml.append("</si>");
+            }
+            xml.append("</sst>");
+            closeEntry();
+        }
+
+        zos.putNextEntry("[Content_Types].xml");
+        xml.append(XML_DECLARATION)
+           .append("<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">")
+           .append("<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>")
+           .append("<Default Extension=\"xml\" ContentType=\"application/xml\"/>")
+           .append("<Override PartName=\"/xl/workbook.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet.main+xml\"/>")
+           .append("<Override PartName=\"/xl/styles.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.styles+xml\"/>");
+        if (anySharedStrings) {
+            xml.append("<Override PartName=\"/xl/sharedStrings.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.sharedStrings+xml\"/>");
+        }
+        for (int sheetNum = 1; sheetNum <= numSheets; sheetNum++) {
+            xml.append("<Override PartName=\"/xl/worksheets/sheet").append(sheetNum)
+               .append(".xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.worksheet+xml\"/>");
+        }
+        xml.append("</Types>");
+        closeEntry();
+
+        zos.putNextEntry("_rels/.rels");
+        xml.append(XML_DECLARATION)
+           .append("<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">")
+           .append("<Relationship Id=\"rId1\" Type=\"").append(NS_RELATIONSHIPS).append("/officeDocument\" Target=\"xl/workbook.xml\"/>")
+           .append("</Relationships>");
+        closeEntry();
+
+        zos.putNextEntry("xl/workbook.xml");
+        xml.append(XML_DECLARATION)
+           .append("<workbook xmlns=\"").append(NS_MAIN).append("\" xmlns:r=\"").append(NS_RELATIONSHIPS).append("\">")
+           .append("<sheets>");
+        for (int sheetNum = 1; sheetNum <= numSheets; sheetNum++) {
+            xml.append("<sheet name=\"").appendEscaped(sheetNames.get(sheetNum - 1))
+               .append("\" sheetId=\"").append(sheetNum)
+               .append("\" r:id=\"rId").append(sheetNum).append("\"/>");
+        }
+        xml.append("</sheets></workbook>");
+        closeEntry();
+
+        zos.putNextEntry("xl/_rels/workbook.xml.rels");
+        xml.append(XML_DECLARATION)
+           .append("<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">");
+        for (int sheetNum = 1; sheetNum <= numSheets; sheetNum++) {
+            xml.append("<Relationship Id=\"rId").append(sheetNum)
+               .append("\" Type=\"").append(NS_RELATIONSHIPS).append("/worksheet\" Target=\"worksheets/sheet")
+               .append(sheetNum).append(".xml\"/>");
+        }
+        xml.append("<Relationship Id=\"rId").append(numSheets + 1)
+           .append("\" Type=\"").append(NS_RELATIONSHIPS).append("/styles\" Target=\"styles.xml\"/>");
+        if (anySharedStrings) {
+            xml.append("<Relationship Id=\"rId").append(numSheets + 2)
+               .append("\" Type=\"").append(NS_RELATIONSHIPS).append("/sharedStrings\" Target=\"sharedStrings.xml\"/>");
+        }
+        xml.append("</Relationships>");
+        closeEntry();
+
+        zos.putNextEntry("xl/styles.xml");
+        xml.append(XML_DECLARATION)
+           .append("<styleSheet xmlns=\"").append(NS_MAIN).append("\">")
+           .append("<numFmts count=\"1\"><numFmt numFmtId=\"164\" formatCode=\"yyyy-mm-dd\"/></numFmts>")
+           .append("<fonts count=\"1\"><font><sz val=\"11\"/><name val=\"Calibri\"/><family val=\"2\"/></font></fonts>")
+           .append("<fills count=\"2\"><fill><patternFill patternType=\"none\"/></fill>")
+           .append("<fill><patternFill patternType=\"gray125\"/></fill></fills>")
+           .append("<borders count=\"1\"><border><left/><right/><top/><bottom/><diagonal/></border></borders>")
+           .append("<cellStyleXfs count=\"1\"><xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\"/></cellStyleXfs>")
+           .append("<cellXfs count=\"2\"><xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\" xfId=\"0\"/>")
+           .append("<xf numFmtId=\"164\" fontId=\"0\" fillId=\"0\" borderId=\"0\" xfId=\"0\" applyNumberFormat=\"1\"/></cellXfs>")
+           .append("<cellStyles count=\"1\"><cellStyle name=\"Normal\" xfId=\"0\" builtinId=\"0\"/></cellStyles>")
+           .append("</styleSheet>");
+        closeEntry();
+    }
+
+    private void closeEntry() throws IOException {
+        xml.flush();
+        zos.closeEntry();
+    }
+
+    // //////////////////////////////////////
+
+    /**
+     * A {@link ZipOutputStream} whose deflater can be released without closing the underlying stream, which
+     * {@link ZipOutputStream#close()} would do (having first finished the zip, even after a failure).
+     */
+    private static class ZipStream extends ZipOutputStream {
+
+        ZipStream(final OutputStream os) {
+            super(os);
+        }
+
+        void putNextEntry(final String name) throws IOException {
+            putNextEntry(new ZipEntry(name));
+        }
+
+        void end() {
+            def.end();
+        }
+    }
+
+    // //////////////////////////////////////
+
+    /**
+     * Formats XML into a fixed-size character buffer, which is handed to the underlying writer whenever it fills.
+     *
+     * <p>
+     *     The cell-writing methods of {@link CellCodec.CellWriter} cannot throw {@link IOException}, so any failure to
+     *     write is rethrown (unchecked) as an {@link ExcelService.Exception}.
+     * </p>
+     */
+    static final class XmlBuffer {
+
+        private static final int SIZE = 16 * 1024;
+
+        private final Writer out;
+        private final char[] buf = new char[SIZE];
+        private int len;
+
+        XmlBuffer(final Writer out) {
+            this.out = out;
+        }
+
+        XmlBuffer append(final String str) {
+            final int strLen = str.length();
+            if (strLen > SIZE - len) {
+                drain();
+                if (strLen > SIZE) {
+                    write(str);
+                    return this;
+                }
+            }
+            str.getChars(0, strLen, buf, len);
+            len += strLen;
+            return this;
+        }
+
+        XmlBuffer append(final char ch) {
+            if (len == SIZE) {
+                drain();
+            }
+            buf[len++] = ch;
+            return this;
+        }
+
+        XmlBuffer append(final int value) {
+            return append(Integer.toString(value));
+        }
+
+        XmlBuffer append(final double value) {
+            final long longValue = (long) value;
+            if (longValue == value && Math.abs(value) < 1e15) {
+                // avoid the trailing ".0"
+                return append(Long.toString(longValue));
+            }
+            return append(Double.toString(value));
+        }
+
+        /**
+         * Appends an attribute value, escaping markup, and also any characters that cannot appear in XML (using
+         * Excel's <tt>_xHHHH_</tt> notation).
+         */
+        XmlBuffer appendEscaped(final String str) {
+            return appendEscaped(str, false);
+        }
+
+        /**
+         * As {@link #appendEscaped(String)}, for the text of a cell, which is decoded on reading (unlike attribute
+         * values); the underscore of any literal <tt>_xHHHH_</tt> is therefore itself escaped (as <tt>_x005F_</tt>),
+         * so that it is not read as an escaped character.
+         */
+        XmlBuffer appendEscapedText(final String str) {
+            return appendEscaped(str, true);
+        }
+
+        private XmlBuffer appendEscaped(final String str, final boolean text) {
+            final int strLen = str.length();
+            for (int i = 0; i < strLen; i++) {
+                final char ch = str.charAt(i);
+                switch (ch) {
+                    case '&':
+                        append("&amp;");
+                        break;
+                    case '<':
+                        append("&lt;");
+                        break;
+                    case '>':
+                        append("&gt;");
+                        break;
+                    case '"':
+                        append("&quot;");
+                        break;
+                    case '\t':
+                    case '\n':
+                    case '\r':
+                        append(ch);
+                        break;
+                    case '_':
+                        append(text && XlsxEventReader.isEscapeAt(str, i) ? "_x005F_" : "_");
+                        break;
+                    default:
+                        if (ch < 0x20 || ch == 0xFFFE || ch == 0xFFFF) {
+                            append(String.format("_x%04X_", (int) ch));
+                        } else {
+                            append(ch);
+                        }
+                        break;
+                }
+            }
+            return this;
+        }
+
+        void flush() throws IOException {
+            out.write(buf, 0, len);
+            len = 0;
+            out.flush();
+        }
+
+        private void drain() {
+            write(buf, len);
+            len = 0;
+        }
+
+        private void write(final char[] chars, final int count) {
+            try {
+                out.write(chars, 0, count);
+            } catch (final IOException ex) {
+                throw new ExcelService.Exception(ex);
+            }
+        }
+
+        private void write(final String str) {
+            try {
+                out.write(str);
+            } catch (final IOException ex) {
+                throw new ExcelService.Exception(ex);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class EngineSelectorTest {
+
+    private final ExcelEngine inMemoryEngine = new InMemoryEngine(null, CellMarshaller.BookmarkEncoding.COMMENTS);
+    private final ExcelEngine streamingEngine = new StreamingEngine(null, 100, false);
+    private final ExcelEngine nativeEngine = new NativeEngine(SharedStrings.Strategy.AUTO);
+
+    @Test
+    public void exports_by_size_when_compressed_the_default_way() throws Exception {
+
+        // given
+        final EngineSelector selector = selector(EngineSelector.Choice.AUTO);
+
+        // then
+        assertThat(selector.forExport(10, ExcelService.Compression.DEFAULT), is(sameInstance(inMemoryEngine)));
+        assertThat(selector.forExport(1000, ExcelService.Compression.DEFAULT), is(sameInstance(streamingEngine)));
+        assertThat(selector.forExport(-1, ExcelService.Compression.DEFAULT), is(sameInstance(streamingEngine)));
+        assertThat(selector.forExport(100000, ExcelService.Compression.DEFAULT), is(sameInstance(nativeEngine)));
+    }
+
+    @Test
+    public void exports_natively_when_compressed_any_other_way() throws Exception {
+        for (final EngineSelector.Choice choice
+                : new EngineSelector.Choice[] { EngineSelector.Choice.AUTO, EngineSelector.Choice.NATIVE }) {
+
+            // given
+            final EngineSelector selector = selector(choice);
+
+            // then
+            for (final ExcelService.Compression compression : ExcelService.Compression.values()) {
+                if (compression != ExcelService.Compression.DEFAULT) {
+                    assertThat(selector.forExport(10, compression), is(sameInstance(nativeEngine)));
+                    assertThat(selector.forExport(-1, compression), is(sameInstance(nativeEngine)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rejects_any_other_compression_if_poi_engines_are_chosen_explicitly() throws Exception {
+        for (final EngineSelector.Choice choice
+                : new EngineSelector.Choice[] { EngineSelector.Choice.MEMORY, EngineSelector.Choice.STREAMING }) {
+
+            // given
+            final EngineSelector selector = selector(choice);
+            selector.checkCompression(ExcelService.Compression.DEFAULT);
+
+            // when
+            try {
+                selector.forExport(10, ExcelService.Compression.STORE);
+                fail();
+            } catch (final IllegalArgumentException ex) {
+                // then expected
+            }
+        }
+    }
+
+    @Test
+    public void poi_engines_reject_any_other_compression() throws Exception {
+
+        // when
+        try {
+            streamingEngine.newSheetWriter(null, "Items", ExcelService.Compression.MAX, null);
+            fail();
+        } catch (final IllegalArgumentException ex) {
+            // then expected
+        }
+    }
+
+    private EngineSelector selector(final EngineSelector.Choice exportChoice) {
+        return new EngineSelector(
+                inMemoryEngine, streamingEngine, nativeEngine,
+                exportChoice, 100, 10000, EngineSelector.Choice.AUTO, 1024 * 1024);
+    }
+
+}
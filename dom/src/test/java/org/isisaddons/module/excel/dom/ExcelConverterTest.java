@@ -0,0 +1,53 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ExcelConverterTest {
+
+    private static final String LONG_NAME = "ExcelModuleDemoToDoItemBulkUpdateLineItem";
+
+    @Test
+    public void short_sheet_names_are_unchanged() throws Exception {
+        assertThat(ExcelConverter.sheetName("ToDoItem", 1), is("ToDoItem"));
+        assertThat(ExcelConverter.sheetName("ToDoItem", 2), is("ToDoItem (2)"));
+    }
+
+    @Test
+    public void long_sheet_names_are_truncated_to_excels_limit() throws Exception {
+        assertThat(ExcelConverter.sheetName(LONG_NAME, 1), is("ExcelModuleDemoToDoItemBulkUpda"));
+        assertThat(ExcelConverter.sheetName(LONG_NAME, 2), is("ExcelModuleDemoToDoItemBulk (2)"));
+        assertThat(ExcelConverter.sheetName(LONG_NAME, 10), is("ExcelModuleDemoToDoItemBul (10)"));
+    }
+
+    @Test
+    public void continuations_of_a_truncated_sheet_are_imported() throws Exception {
+        assertThat(
+                ExcelConverter.sheetsToImport(Arrays.asList(
+                        ExcelConverter.sheetName(LONG_NAME, 1),
+                        "Other",
+                        ExcelConverter.sheetName(LONG_NAME, 2),
+                        ExcelConverter.sheetName(LONG_NAME, 3))),
+                is(Arrays.asList(0, 2, 3)));
+    }
+
+}
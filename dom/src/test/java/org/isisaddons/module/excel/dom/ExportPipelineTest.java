@@ -0,0 +1,125 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class ExportPipelineTest {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void writes_all_rows_then_finishes() throws Exception {
+
+        // given
+        final SlowRowWriter rowWriter = new SlowRowWriter(0);
+
+        // when
+        new ExportPipeline(ExportPipeline.Mode.PIPELINED, executor).run(rows(1000, -1), rowWriter);
+
+        // then
+        assertThat(rowWriter.written.get(), is(1000));
+        assertThat(rowWriter.finished.get(), is(true));
+    }
+
+    @Test
+    public void when_reading_fails_then_waits_for_the_writer_to_stop() throws Exception {
+
+        // given
+        final SlowRowWriter rowWriter = new SlowRowWriter(1);
+
+        // when
+        try {
+            new ExportPipeline(ExportPipeline.Mode.PIPELINED, executor).run(rows(1000, 600), rowWriter);
+            fail();
+        } catch (final IllegalStateException ex) {
+            // then expected
+        }
+
+        // then
+        final int written = rowWriter.written.get();
+        assertThat(written > 0, is(true));
+        Thread.sleep(50);
+        assertThat(rowWriter.written.get(), is(written));
+        assertThat(rowWriter.finished.get(), is(false));
+    }
+
+    // //////////////////////////////////////
+
+    private static Iterator<ExportRow> rows(final int numRows, final int failAt) {
+        return new AbstractIterator<ExportRow>() {
+            private int rowNum;
+
+            @Override
+            protected ExportRow computeNext() {
+                if (rowNum == failAt) {
+                    throw new IllegalStateException("row " + rowNum);
+                }
+                return rowNum++ < numRows ? new ExportRow(1, false) : endOfData();
+            }
+        };
+    }
+
+    private static class SlowRowWriter implements ExportPipeline.RowWriter {
+
+        private final long millisPerRow;
+        private final AtomicInteger written = new AtomicInteger();
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        private SlowRowWriter(final long millisPerRow) {
+            this.millisPerRow = millisPerRow;
+        }
+
+        @Override
+        public void write(final ExportRow row) throws IOException {
+            // as would writing to a stream, ignores any interrupt
+            Uninterruptibles.sleepUninterruptibly(millisPerRow, TimeUnit.MILLISECONDS);
+            written.incrementAndGet();
+        }
+
+        @Override
+        public void finish() throws IOException {
+            finished.set(true);
+        }
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+import java.util.Collections;
+import org.jmock.Expectations;
+import org.jmock.auto.Mock;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.apache.isis.applib.AbstractViewModel;
+import org.apache.isis.applib.DomainObjectContainer;
+import org.apache.isis.applib.services.bookmark.BookmarkService;
+import org.apache.isis.core.metamodel.facets.object.callbacks.CreatedCallbackFacet;
+import org.apache.isis.core.metamodel.facets.object.viewmodel.ViewModelFacet;
+import org.apache.isis.core.metamodel.spec.ObjectSpecification;
+import org.apache.isis.core.metamodel.spec.feature.Contributed;
+import org.apache.isis.core.unittestsupport.jmocking.JUnitRuleMockery2;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class ObjectFactoryTest {
+
+    public static class LineItem extends AbstractViewModel {
+
+        private String description;
+        private BookmarkService bookmarkService;
+
+        public String getDescription() {
+            return description;
+        }
+
+        public void setDescription(final String description) {
+            this.description = description;
+        }
+
+        public DomainObjectContainer container() {
+            return getContainer();
+        }
+
+        public BookmarkService bookmarkService() {
+            return bookmarkService;
+        }
+
+        public void setBookmarkService(final BookmarkService bookmarkService) {
+            this.bookmarkService = bookmarkService;
+        }
+
+        @Override
+        public String viewModelMemento() {
+            return description;
+        }
+
+        @Override
+        public void viewModelInit(final String memento) {
+            description = memento;
+        }
+    }
+
+    @Rule
+    public JUnitRuleMockery2 context = JUnitRuleMockery2.createFor(JUnitRuleMockery2.Mode.INTERFACES_AND_CLASSES);
+
+    @Mock
+    private ObjectSpecification mockObjectSpec;
+    @Mock
+    private ViewModelFacet mockViewModelFacet;
+    @Mock
+    private DomainObjectContainer mockContainer;
+    @Mock
+    private BookmarkService mockBookmarkService;
+
+    @Before
+    public void setUp() throws Exception {
+        context.checking(new Expectations() {{
+            allowing(mockObjectSpec).getCorrespondingClass();
+            will(returnValue(LineItem.class));
+            allowing(mockObjectSpec).getFacet(ViewModelFacet.class);
+            will(returnValue(mockViewModelFacet));
+            allowing(mockObjectSpec).getFacet(CreatedCallbackFacet.class);
+            will(returnValue(null));
+            allowing(mockObjectSpec).getAssociations(Contributed.EXCLUDED);
+            will(returnValue(Collections.emptyList()));
+
+            allowing(mockContainer).lookupService(BookmarkService.class);
+            will(returnValue(mockBookmarkService));
+            allowing(mockContainer).lookupService(with(any(Class.class)));
+            will(returnValue(null));
+        }});
+    }
+
+    @Test
+    public void injects_the_container_and_services_through_setters() throws Exception {
+
+        // given
+        final ObjectFactory objectFactory = ObjectFactory.forSpec(mockObjectSpec);
+
+        // when
+        final LineItem lineItem = (LineItem) objectFactory.bind(mockContainer).newInstance();
+
+        // then
+        assertThat(lineItem.container(), is(sameInstance(mockContainer)));
+        assertThat(lineItem.bookmarkService(), is(sameInstance(mockBookmarkService)));
+        assertThat(lineItem.getDescription(), is(nullValue()));
+    }
+
+}
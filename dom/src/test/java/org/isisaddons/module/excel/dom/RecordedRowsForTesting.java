@@ -0,0 +1,100 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import org.apache.poi.ss.usermodel.Cell;
+
+/**
+ * Records the sheets and rows read by an {@link ExcelEngine} (or {@link XlsxEventReader}) as one line of text each,
+ * so that the result of reading a spreadsheet one way can be compared with that of reading it another.
+ */
+class RecordedRowsForTesting implements XlsxEventReader.RowHandler {
+
+    private final List<String> lines = Lists.newArrayList();
+
+    @Override
+    public void sheet(final String sheetName) {
+        lines.add("sheet " + sheetName);
+    }
+
+    @Override
+    public void row(final int rowNum, final List<CellValue> cells) {
+        final StringBuilder buf = new StringBuilder("row ").append(rowNum);
+        for (final CellValue cell : cells) {
+            buf.append(" | ").append(cell.getColumnIndex()).append(':').append(describe(cell));
+            final String comment = cell.getComment();
+            if (comment != null) {
+                buf.append(" #").append(comment);
+            }
+        }
+        lines.add(buf.toString());
+    }
+
+    private static String describe(final CellValue cell) {
+        switch (cell.getCellType()) {
+            case Cell.CELL_TYPE_STRING:
+                return "s=" + cell.getStringValue();
+            case Cell.CELL_TYPE_NUMERIC:
+                return "n=" + cell.getNumericValue();
+            case Cell.CELL_TYPE_BOOLEAN:
+                return "b=" + cell.getBooleanValue();
+            case Cell.CELL_TYPE_BLANK:
+                return "blank";
+            default:
+                return "type " + cell.getCellType();
+        }
+    }
+
+    List<String> getLines() {
+        return lines;
+    }
+
+    // //////////////////////////////////////
+
+    /**
+     * Copies the zip, replacing the contents of the named entries.
+     */
+    static byte[] replaceEntries(final byte[] zip, final Map<String, String> contentsByName) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip));
+             ZipOutputStream zos = new ZipOutputStream(baos)) {
+            for (ZipEntry entry = zis.getNextEntry(); entry != null; entry = zis.getNextEntry()) {
+                zos.putNextEntry(new ZipEntry(entry.getName()));
+                final String contents = contentsByName.get(entry.getName());
+                if (contents != null) {
+                    zos.write(contents.getBytes(Charsets.UTF_8));
+                } else {
+                    ByteStreams.copy(zis, zos);
+                }
+                zos.closeEntry();
+            }
+        }
+        return baos.toByteArray();
+    }
+
+}
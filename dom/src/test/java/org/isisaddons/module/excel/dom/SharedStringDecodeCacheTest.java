@@ -0,0 +1,76 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class SharedStringDecodeCacheTest {
+
+    @Test
+    public void caches_by_slot_and_index() throws Exception {
+
+        // given
+        final SharedStringDecodeCache cache = new SharedStringDecodeCache(2);
+
+        // when
+        cache.put(0, 3, "DONE");
+        cache.put(1, 3, 3.5);
+
+        // then
+        assertThat(cache.get(0, 3), is((Object) "DONE"));
+        assertThat(cache.get(1, 3), is((Object) 3.5));
+        assertThat(cache.get(0, 4), is(nullValue()));
+        assertThat(cache.get(1, 1000), is(nullValue()));
+    }
+
+    @Test
+    public void keeps_the_values_already_cached_as_it_grows() throws Exception {
+
+        // given
+        final SharedStringDecodeCache cache = new SharedStringDecodeCache(1);
+        cache.put(0, 0, "first");
+
+        // when
+        cache.put(0, 1000, "later");
+
+        // then
+        assertThat(cache.get(0, 0), is((Object) "first"));
+        assertThat(cache.get(0, 1000), is((Object) "later"));
+    }
+
+    @Test
+    public void caches_neither_nulls_nor_high_indexes() throws Exception {
+
+        // given
+        final SharedStringDecodeCache cache = new SharedStringDecodeCache(1);
+
+        // when
+        cache.put(0, 0, null);
+        cache.put(0, SharedStringDecodeCache.MAXIMUM_INDEX - 1, "last");
+        cache.put(0, SharedStringDecodeCache.MAXIMUM_INDEX, "beyond");
+
+        // then
+        assertThat(cache.get(0, 0), is(nullValue()));
+        assertThat(cache.get(0, SharedStringDecodeCache.MAXIMUM_INDEX - 1), is((Object) "last"));
+        assertThat(cache.get(0, SharedStringDecodeCache.MAXIMUM_INDEX), is(nullValue()));
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class SharedStringsTest {
+
+    private static final String[] STATUSES = {"NEW", "IN_PROGRESS", "BLOCKED", "DONE"};
+
+    private static final int NAMES = 0;
+    private static final int STATUS = 1;
+
+    @Test
+    public void auto_inlines_a_column_of_distinct_strings_once_sampled() throws Exception {
+
+        // given
+        final SharedStrings sharedStrings = new SharedStrings(SharedStrings.Strategy.AUTO);
+
+        // when
+        for (int i = 0; i < SharedStrings.SAMPLE_SIZE; i++) {
+
+            // then shared while sampled
+            assertThat(sharedStrings.indexOf(NAMES, "name " + i), is(i));
+        }
+
+        // then inlined from then on, even strings already in the table
+        assertThat(sharedStrings.indexOf(NAMES, "name " + SharedStrings.SAMPLE_SIZE), is(-1));
+        assertThat(sharedStrings.indexOf(NAMES, "name 0"), is(-1));
+        assertThat(sharedStrings.size(), is(SharedStrings.SAMPLE_SIZE));
+    }
+
+    @Test
+    public void auto_keeps_sharing_a_column_of_repeating_strings() throws Exception {
+
+        // given
+        final SharedStrings sharedStrings = new SharedStrings(SharedStrings.Strategy.AUTO);
+
+        // when
+        for (int i = 0; i < 3 * SharedStrings.SAMPLE_SIZE; i++) {
+            sharedStrings.indexOf(NAMES, "name " + i);
+            final String status = STATUSES[i % STATUSES.length];
+
+            // then
+            assertThat(sharedStrings.get(sharedStrings.indexOf(STATUS, status)), is(status));
+        }
+
+        // then each column was decided on its own
+        assertThat(sharedStrings.indexOf(NAMES, "name 0"), is(-1));
+        assertThat(sharedStrings.size(), is(SharedStrings.SAMPLE_SIZE + STATUSES.length));
+        assertThat(sharedStrings.getCount(), is((long) SharedStrings.SAMPLE_SIZE + 3 * SharedStrings.SAMPLE_SIZE));
+    }
+
+    @Test
+    public void shared_shares_every_string() throws Exception {
+
+        // given
+        final SharedStrings sharedStrings = new SharedStrings(SharedStrings.Strategy.SHARED);
+
+        // when, growing well beyond the initial capacity of the table
+        for (int i = 0; i < 10 * SharedStrings.SAMPLE_SIZE; i++) {
+            assertThat(sharedStrings.indexOf(NAMES, "name " + i), is(i));
+        }
+
+        // then
+        for (int i = 0; i < 10 * SharedStrings.SAMPLE_SIZE; i++) {
+            assertThat(sharedStrings.indexOf(NAMES, "name " + i), is(i));
+            assertThat(sharedStrings.get(i), is("name " + i));
+        }
+        assertThat(sharedStrings.size(), is(10 * SharedStrings.SAMPLE_SIZE));
+    }
+
+    @Test
+    public void inline_shares_no_string() throws Exception {
+
+        // given
+        final SharedStrings sharedStrings = new SharedStrings(SharedStrings.Strategy.INLINE);
+
+        // when
+        for (int i = 0; i < 10; i++) {
+
+            // then
+            assertThat(sharedStrings.indexOf(STATUS, STATUSES[0]), is(-1));
+        }
+        assertThat(sharedStrings.size(), is(0));
+        assertThat(sharedStrings.getCount(), is(0L));
+    }
+
+}
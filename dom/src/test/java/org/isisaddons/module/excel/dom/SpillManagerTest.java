@@ -0,0 +1,165 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Arrays;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class SpillManagerTest {
+
+    private static final int THRESHOLD = 16;
+
+    private File directory;
+    private SpillManager spillManager;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDir();
+        spillManager = new SpillManager(directory, THRESHOLD);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        spillManager.shutdown();
+        directory.delete();
+    }
+
+    @Test
+    public void holds_a_stream_of_up_to_the_threshold_in_memory() throws Exception {
+
+        // given
+        final byte[] bytes = bytes(THRESHOLD);
+
+        // when
+        try (SpillManager.Spool spool = spillManager.spool(new ByteArrayInputStream(bytes))) {
+
+            // then
+            assertThat(spool.isInMemory(), is(true));
+            assertThat(Arrays.equals(spool.getBytes(), bytes), is(true));
+        }
+        assertThat(spillManager.getSpilledFiles(), is(0L));
+    }
+
+    @Test
+    public void spills_a_stream_beyond_the_threshold_until_closed() throws Exception {
+
+        // given
+        final byte[] bytes = bytes(THRESHOLD + 1);
+
+        // when
+        final File file;
+        try (SpillManager.Spool spool = spillManager.spool(new ByteArrayInputStream(bytes))) {
+
+            // then
+            assertThat(spool.isInMemory(), is(false));
+            file = spool.getFile();
+            assertThat(file.getParentFile(), is(directory));
+            assertThat(Arrays.equals(Files.toByteArray(file), bytes), is(true));
+        }
+        assertThat(file.exists(), is(false));
+        assertThat(spillManager.getSpilledFiles(), is(1L));
+        assertThat(spillManager.getSpilledBytes(), is((long) bytes.length));
+    }
+
+    @Test
+    public void spools_to_a_file_however_small_the_stream() throws Exception {
+
+        // given
+        final byte[] bytes = bytes(1);
+
+        // when
+        try (SpillManager.Spool spool = spillManager.spoolToFile(new ByteArrayInputStream(bytes))) {
+
+            // then
+            assertThat(spool.isInMemory(), is(false));
+            assertThat(Arrays.equals(Files.toByteArray(spool.getFile()), bytes), is(true));
+        }
+        assertThat(spillManager.getSpilledFiles(), is(1L));
+    }
+
+    @Test
+    public void deletes_the_files_still_in_use_on_shutdown() throws Exception {
+
+        // given
+        final SpillManager.Spool spool = spillManager.spoolToFile(new ByteArrayInputStream(bytes(1)));
+
+        // when
+        spillManager.shutdown();
+
+        // then
+        assertThat(spool.getFile().exists(), is(false));
+    }
+
+    @Test
+    public void holds_an_output_of_up_to_the_threshold_in_memory() throws Exception {
+
+        // given
+        final byte[] bytes = bytes(THRESHOLD);
+
+        // when
+        try (SpillManager.SpillOutputStream os = spillManager.newOutputStream(1)) {
+            os.write(bytes, 0, THRESHOLD - 1);
+            os.write(bytes[THRESHOLD - 1]);
+
+            // then
+            assertThat(os.isInMemory(), is(true));
+            assertThat(Arrays.equals(os.toByteArray(), bytes), is(true));
+        }
+        assertThat(spillManager.getSpilledFiles(), is(0L));
+    }
+
+    @Test
+    public void spills_an_output_beyond_the_threshold_until_closed() throws Exception {
+
+        // given
+        final byte[] bytes = bytes(THRESHOLD * 3);
+
+        // when
+        try (SpillManager.SpillOutputStream os = spillManager.newOutputStream(THRESHOLD * 2)) {
+            os.write(bytes, 0, THRESHOLD);
+            os.write(bytes[THRESHOLD]);
+            os.write(bytes, THRESHOLD + 1, bytes.length - THRESHOLD - 1);
+
+            // then
+            assertThat(os.isInMemory(), is(false));
+            assertThat(Arrays.equals(os.toByteArray(), bytes), is(true));
+            assertThat(directory.list().length, is(1));
+        }
+        assertThat(directory.list().length, is(0));
+        assertThat(spillManager.getSpilledFiles(), is(1L));
+        assertThat(spillManager.getSpilledBytes(), is((long) bytes.length));
+    }
+
+    // //////////////////////////////////////
+
+    private static byte[] bytes(final int length) {
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) i;
+        }
+        return bytes;
+    }
+
+}
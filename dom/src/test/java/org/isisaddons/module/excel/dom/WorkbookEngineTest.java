@@ -0,0 +1,82 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class WorkbookEngineTest {
+
+    private static final String LONG_NAME = "ExcelModuleDemoToDoItemBulkUpdateLineItem";
+
+    @Test
+    public void continues_onto_new_sheets_at_the_row_limit_when_in_memory() throws Exception {
+        assertContinuesOntoNewSheets(new XSSFWorkbook());
+    }
+
+    @Test
+    public void continues_onto_new_sheets_at_the_row_limit_when_streaming() throws Exception {
+        final SXSSFWorkbook wb = new SXSSFWorkbook(2);
+        try {
+            assertContinuesOntoNewSheets(wb);
+        } finally {
+            wb.dispose();
+        }
+    }
+
+    private static void assertContinuesOntoNewSheets(final Workbook wb) throws Exception {
+
+        // given three rows per sheet, including the header
+        final WorkbookEngine.RowFactory rowFactory = new WorkbookEngine.RowFactory(
+                wb, 3, LONG_NAME, Collections.singletonList("Name"), Collections.<String>emptyList());
+
+        // when
+        for (int i = 1; i <= 5; i++) {
+            final Row row = rowFactory.newRow();
+            row.createCell(0).setCellValue("item " + i);
+        }
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        wb.write(baos);
+
+        // then
+        final RecordedRowsForTesting rows = new RecordedRowsForTesting();
+        XlsxEventReader.readSheets(new ByteArrayInputStream(baos.toByteArray()), rows);
+        assertThat(rows.getLines(), is(Arrays.asList(
+                "sheet ExcelModuleDemoToDoItemBulkUpda",
+                "row 0 | 0:s=Name",
+                "row 1 | 0:s=item 1",
+                "row 2 | 0:s=item 2",
+                "sheet ExcelModuleDemoToDoItemBulk (2)",
+                "row 0 | 0:s=Name",
+                "row 1 | 0:s=item 3",
+                "row 2 | 0:s=item 4",
+                "sheet ExcelModuleDemoToDoItemBulk (3)",
+                "row 0 | 0:s=Name",
+                "row 1 | 0:s=item 5")));
+    }
+
+}
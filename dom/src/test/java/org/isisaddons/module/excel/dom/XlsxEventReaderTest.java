@@ -0,0 +1,149 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.ClientAnchor;
+import org.apache.poi.ss.usermodel.Comment;
+import org.apache.poi.ss.usermodel.CreationHelper;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class XlsxEventReaderTest {
+
+    private static final String NS_MAIN = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+
+    @Test
+    public void reads_the_same_cells_as_the_in_memory_workbook() throws Exception {
+
+        // given
+        final byte[] bytes = newWorkbook();
+
+        // when
+        final RecordedRowsForTesting streamed = new RecordedRowsForTesting();
+        XlsxEventReader.readSheets(new ByteArrayInputStream(bytes), streamed);
+
+        final RecordedRowsForTesting inMemory = new RecordedRowsForTesting();
+        new InMemoryEngine(null, CellMarshaller.BookmarkEncoding.COLUMNS)
+                .readSheets(new ByteArrayInputStream(bytes), inMemory);
+
+        // then
+        assertThat(streamed.getLines(), is(inMemory.getLines()));
+        assertThat(streamed.getLines().size(), is(4));
+    }
+
+    @Test
+    public void shared_string_cell_without_a_value_is_blank() throws Exception {
+
+        // given
+        final byte[] bytes = withSheet(
+                "<c r=\"A1\" t=\"s\"/><c r=\"B1\" t=\"s\"><v></v></c><c r=\"C1\" t=\"inlineStr\"><is><t>x</t></is></c>");
+
+        // when
+        final RecordedRowsForTesting streamed = new RecordedRowsForTesting();
+        XlsxEventReader.readSheets(new ByteArrayInputStream(bytes), streamed);
+
+        // then
+        assertThat(streamed.getLines().get(1), is("row 0 | 0:blank | 1:blank | 2:s=x"));
+    }
+
+    @Test
+    public void rejects_a_document_type_declaration() throws Exception {
+
+        // given
+        final String sheetXml = "<?xml version=\"1.0\"?>"
+                + "<!DOCTYPE worksheet [<!ENTITY xxe SYSTEM \"file:///etc/passwd\">]>"
+                + "<worksheet xmlns=\"" + NS_MAIN + "\"><sheetData>"
+                + "<row r=\"1\"><c r=\"A1\" t=\"inlineStr\"><is><t>&xxe;</t></is></c></row>"
+                + "</sheetData></worksheet>";
+        final byte[] bytes = RecordedRowsForTesting.replaceEntries(
+                newWorkbook(), Collections.singletonMap("xl/worksheets/sheet1.xml", sheetXml));
+
+        // when
+        try {
+            XlsxEventReader.readSheets(new ByteArrayInputStream(bytes), new RecordedRowsForTesting());
+            fail();
+        } catch (final ExcelService.Exception ex) {
+            // then expected
+        }
+    }
+
+    // //////////////////////////////////////
+
+    private static byte[] newWorkbook() throws IOException {
+        final XSSFWorkbook wb = new XSSFWorkbook();
+        final Sheet sheet = wb.createSheet("Items");
+
+        final Row header = sheet.createRow(0);
+        header.createCell(0).setCellValue("Name");
+        header.createCell(1).setCellValue("Price");
+        header.createCell(2).setCellValue("Complete");
+        header.createCell(3).setCellValue("Due");
+
+        final Row row1 = sheet.createRow(1);
+        final Cell commented = row1.createCell(0);
+        commented.setCellValue("Milk");
+        addComment(commented, "ToDoItem:L_1");
+        row1.createCell(1).setCellValue(1.25);
+        row1.createCell(2).setCellValue(true);
+        row1.createCell(3).setCellValue(new Date(0));
+        row1.createCell(4);
+
+        // row 2 left empty
+        final Row row3 = sheet.createRow(3);
+        row3.createCell(0).setCellValue(" Milk ");
+        row3.createCell(2).setCellValue(false);
+        row3.createCell(5).setCellValue("Milk");
+
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        wb.write(baos);
+        return baos.toByteArray();
+    }
+
+    private static void addComment(final Cell cell, final String text) {
+        final CreationHelper creationHelper = cell.getSheet().getWorkbook().getCreationHelper();
+        final ClientAnchor anchor = creationHelper.createClientAnchor();
+        anchor.setCol1(cell.getColumnIndex());
+        anchor.setCol2(cell.getColumnIndex() + 1);
+        anchor.setRow1(cell.getRowIndex());
+        anchor.setRow2(cell.getRowIndex() + 3);
+        final Comment comment = cell.getSheet().createDrawingPatriarch().createCellComment(anchor);
+        comment.setString(creationHelper.createRichTextString(text));
+        cell.setCellComment(comment);
+    }
+
+    private static byte[] withSheet(final String cellsXml) throws IOException {
+        final String sheetXml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<worksheet xmlns=\"" + NS_MAIN + "\"><sheetData>"
+                + "<row r=\"1\">" + cellsXml + "</row>"
+                + "</sheetData></worksheet>";
+        return RecordedRowsForTesting.replaceEntries(
+                newWorkbook(), Collections.singletonMap("xl/worksheets/sheet1.xml", sheetXml));
+    }
+
+}
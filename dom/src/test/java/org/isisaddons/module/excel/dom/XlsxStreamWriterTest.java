@@ -0,0 +1,268 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class XlsxStreamWriterTest {
+
+    private static final String LONG_NAME = "ExcelModuleDemoToDoItemBulkUpdateLineItem";
+
+    // each row is some 200 bytes of XML
+    private static final int NUM_ROWS_OF_HALF_A_MEGABYTE = 512 * 1024 / 200;
+
+    @Test
+    public void continues_onto_new_sheets_at_the_row_limit() throws Exception {
+
+        // given three rows per sheet, including the header
+        final byte[] bytes = write(3, 5);
+
+        // when
+        final RecordedRowsForTesting rows = new RecordedRowsForTesting();
+        XlsxEventReader.readSheets(new ByteArrayInputStream(bytes), rows);
+
+        // then
+        assertThat(rows.getLines(), is(Arrays.asList(
+                "sheet ExcelModuleDemoToDoItemBulkUpda",
+                "row 0 | 0:s=Name | 1:s=Price | 2:s=Complete | 3:s=Owner [bookmark]",
+                "row 1 | 0:s=item 1 | 1:n=1.5 | 2:b=false | 3:s=a < b & \"c\"",
+                "row 2 | 0:s=item 2 | 1:n=3.0 | 2:b=true | 3:s= padded ",
+                "sheet ExcelModuleDemoToDoItemBulk (2)",
+                "row 0 | 0:s=Name | 1:s=Price | 2:s=Complete | 3:s=Owner [bookmark]",
+                "row 1 | 0:s=item 3 | 1:n=4.5 | 2:b=false | 3:s=a < b & \"c\"",
+                "row 2 | 0:s=item 4 | 1:n=6.0 | 2:b=true | 3:s= padded ",
+                "sheet ExcelModuleDemoToDoItemBulk (3)",
+                "row 0 | 0:s=Name | 1:s=Price | 2:s=Complete | 3:s=Owner [bookmark]",
+                "row 1 | 0:s=item 5 | 1:n=7.5 | 2:b=false | 3:s=a < b & \"c\"")));
+    }
+
+    @Test
+    public void is_read_by_poi_as_it_is_streamed() throws Exception {
+
+        // given
+        final byte[] bytes = write(ExcelConverter.MAX_ROWS_PER_SHEET, 100);
+
+        // when
+        final RecordedRowsForTesting streamed = new RecordedRowsForTesting();
+        XlsxEventReader.readSheets(new ByteArrayInputStream(bytes), streamed);
+
+        final RecordedRowsForTesting inMemory = new RecordedRowsForTesting();
+        new InMemoryEngine(null, CellMarshaller.BookmarkEncoding.COLUMNS)
+                .readSheets(new ByteArrayInputStream(bytes), inMemory);
+
+        // then
+        assertThat(streamed.getLines(), is(inMemory.getLines()));
+        assertThat(streamed.getLines().size(), is(102));
+
+        final Workbook wb = WorkbookFactory.create(new ByteArrayInputStream(bytes));
+        final Sheet sheet = wb.getSheetAt(0);
+        assertThat(sheet.isColumnHidden(3), is(true));
+        assertThat(sheet.getRow(1).getCell(4).getDateCellValue(), is(new Date(86400000L)));
+    }
+
+    @Test
+    public void is_read_back_whatever_the_compression() throws Exception {
+
+        // given enough rows for the sheet to be deflated in many pieces
+        final RecordedRowsForTesting expected = new RecordedRowsForTesting();
+        XlsxEventReader.readSheets(
+                new ByteArrayInputStream(write(ExcelConverter.MAX_ROWS_PER_SHEET, NUM_ROWS_OF_HALF_A_MEGABYTE)), expected);
+
+        for (final ExcelService.Compression compression : ExcelService.Compression.values()) {
+            assertReadBack(compression, expected);
+        }
+    }
+
+    @Test
+    public void is_read_back_whatever_the_shared_strings_strategy() throws Exception {
+
+        // given enough rows for auto to inline the distinct names, but to keep sharing the repeated strings
+        final int numRows = 2 * SharedStrings.SAMPLE_SIZE;
+        final byte[] inline = write(6, ExcelConverter.MAX_ROWS_PER_SHEET, numRows, SharedStrings.Strategy.INLINE);
+        final RecordedRowsForTesting expected = new RecordedRowsForTesting();
+        XlsxEventReader.readSheets(new ByteArrayInputStream(inline), expected);
+
+        for (final SharedStrings.Strategy strategy : SharedStrings.Strategy.values()) {
+
+            // when
+            final byte[] bytes = write(6, ExcelConverter.MAX_ROWS_PER_SHEET, numRows, strategy);
+
+            // then
+            final RecordedRowsForTesting streamed = new RecordedRowsForTesting();
+            XlsxEventReader.readSheets(new ByteArrayInputStream(bytes), streamed);
+            assertThat(strategy.name(), streamed.getLines(), is(expected.getLines()));
+
+            final RecordedRowsForTesting inMemory = new RecordedRowsForTesting();
+            new InMemoryEngine(null, CellMarshaller.BookmarkEncoding.COLUMNS)
+                    .readSheets(new ByteArrayInputStream(bytes), inMemory);
+            assertThat(strategy.name(), inMemory.getLines(), is(expected.getLines()));
+        }
+    }
+
+    @Test
+    public void writes_a_null_string_as_a_blank_cell() throws Exception {
+
+        // when
+        final byte[] bytes = writeStrings(SharedStrings.Strategy.INLINE, null, "not null");
+
+        // then
+        final RecordedRowsForTesting streamed = new RecordedRowsForTesting();
+        XlsxEventReader.readSheets(new ByteArrayInputStream(bytes), streamed);
+        assertThat(streamed.getLines().get(2), is("row 1 | 0:blank | 1:s=not null"));
+
+        final RecordedRowsForTesting inMemory = new RecordedRowsForTesting();
+        new InMemoryEngine(null, CellMarshaller.BookmarkEncoding.COLUMNS)
+                .readSheets(new ByteArrayInputStream(bytes), inMemory);
+        assertThat(inMemory.getLines(), is(streamed.getLines()));
+    }
+
+    @Test
+    public void escapes_literal_escapes_and_control_characters() throws Exception {
+
+        for (final SharedStrings.Strategy strategy : Arrays.asList(
+                SharedStrings.Strategy.INLINE, SharedStrings.Strategy.SHARED)) {
+
+            // when
+            final byte[] bytes = writeStrings(strategy, "_x0041_", "a_x00e9_b", "_x12_", "bell\u0007");
+
+            // then read back as written, rather than as the characters they would otherwise denote
+            final RecordedRowsForTesting streamed = new RecordedRowsForTesting();
+            XlsxEventReader.readSheets(new ByteArrayInputStream(bytes), streamed);
+            assertThat(strategy.name(), streamed.getLines().get(2),
+                    is("row 1 | 0:s=_x0041_ | 1:s=a_x00e9_b | 2:s=_x12_ | 3:s=bell\u0007"));
+
+            final RecordedRowsForTesting inMemory = new RecordedRowsForTesting();
+            new InMemoryEngine(null, CellMarshaller.BookmarkEncoding.COLUMNS)
+                    .readSheets(new ByteArrayInputStream(bytes), inMemory);
+            assertThat(strategy.name(), inMemory.getLines(), is(streamed.getLines()));
+        }
+    }
+
+    private static void assertReadBack(
+            final ExcelService.Compression compression,
+            final RecordedRowsForTesting expected) throws Exception {
+
+        // when
+        final byte[] bytes = write(compression.getLevel(), ExcelConverter.MAX_ROWS_PER_SHEET, NUM_ROWS_OF_HALF_A_MEGABYTE);
+
+        // then
+        assertReadByZipFile(bytes);
+
+        final RecordedRowsForTesting streamed = new RecordedRowsForTesting();
+        XlsxEventReader.readSheets(new ByteArrayInputStream(bytes), streamed);
+        assertThat(streamed.getLines(), is(expected.getLines()));
+
+        final RecordedRowsForTesting inMemory = new RecordedRowsForTesting();
+        new InMemoryEngine(null, CellMarshaller.BookmarkEncoding.COLUMNS)
+                .readSheets(new ByteArrayInputStream(bytes), inMemory);
+        assertThat(inMemory.getLines(), is(expected.getLines()));
+    }
+
+    private static void assertReadByZipFile(final byte[] bytes) throws Exception {
+        final File file = File.createTempFile("XlsxStreamWriterTest", ".xlsx");
+        try {
+            Files.write(bytes, file);
+            try (ZipFile zipFile = new ZipFile(file)) {
+                assertThat(zipFile.getEntry("xl/worksheets/sheet1.xml") != null, is(true));
+                for (final ZipEntry entry : Collections.list(zipFile.entries())) {
+                    // reading each entry in full checks its size and CRC
+                    final byte[] contents = ByteStreams.toByteArray(zipFile.getInputStream(entry));
+                    assertThat(entry.getName(), (long) contents.length, is(entry.getSize()));
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * A single row of the strings, beneath a header row naming each column.
+     */
+    private static byte[] writeStrings(final SharedStrings.Strategy strategy, final String... values) throws Exception {
+        final List<String> headers = Lists.newArrayList();
+        for (int i = 0; i < values.length; i++) {
+            headers.add("Column " + i);
+        }
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final XlsxStreamWriter writer = new XlsxStreamWriter(
+                baos, 6, ExcelConverter.MAX_ROWS_PER_SHEET, LONG_NAME, headers, Collections.<String>emptyList(), strategy);
+        writer.startRow();
+        for (int i = 0; i < values.length; i++) {
+            writer.cell(i).writeString(values[i]);
+        }
+        writer.endRow();
+        writer.finish();
+        writer.close();
+        return baos.toByteArray();
+    }
+
+    private static byte[] write(final int maxRowsPerSheet, final int numRows) throws Exception {
+        return write(6, maxRowsPerSheet, numRows);
+    }
+
+    private static byte[] write(
+            final int compressionLevel,
+            final int maxRowsPerSheet,
+            final int numRows) throws Exception {
+        return write(compressionLevel, maxRowsPerSheet, numRows, SharedStrings.Strategy.INLINE);
+    }
+
+    private static byte[] write(
+            final int compressionLevel,
+            final int maxRowsPerSheet,
+            final int numRows,
+            final SharedStrings.Strategy strategy) throws Exception {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final XlsxStreamWriter writer = new XlsxStreamWriter(
+                baos, compressionLevel, maxRowsPerSheet, LONG_NAME,
+                Arrays.asList("Name", "Price", "Complete"), Collections.singletonList("Owner [bookmark]"),
+                strategy);
+        for (int i = 1; i <= numRows; i++) {
+            writer.startRow();
+            writer.cell(0).writeString("item " + i);
+            writer.cell(1).writeNumeric(i * 1.5);
+            writer.cell(2).writeBoolean(i % 2 == 0);
+            writer.cell(3).writeString(i % 2 == 0 ? " padded " : "a < b & \"c\"");
+            if (maxRowsPerSheet == ExcelConverter.MAX_ROWS_PER_SHEET) {
+                writer.cell(4).writeDate(new Date(86400000L));
+            }
+            writer.endRow();
+        }
+        writer.finish();
+        writer.close();
+        return baos.toByteArray();
+    }
+
+}